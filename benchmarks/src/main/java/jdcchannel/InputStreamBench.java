@@ -0,0 +1,86 @@
+package jdcchannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** JMH throughput of InputStreamToChannel - each op is one read(ByteBuffer) of up to consumerSize bytes, in blocking
+ *  mode so the consumer never polls.
+ *
+ *  ops/s is the score, bytes/s is the 'bytes' secondary result. For allocation per byte run with -prof gc and divide
+ *  gc.alloc.rate.norm (bytes per op) by bytes per op.
+ *
+ *  The source InputStream returns 0 bytes every 1024th read, so the Delay settings are exercised.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InputStreamBench {
+
+  @Param({ "1", "64", "4096", "65536", "1048576" })
+  public int consumerSize;
+
+  @Param({ "1024", "8192", "65536" })
+  public int rdBfrSz;
+
+  @Param({ "65536", "1048576" })
+  public int maxInFlight;
+
+  @Param({ "none", "8/256" })                   // sleepStep/sleepMax of the Delay
+  public String delay;
+
+  private InputStreamToChannel chnl;
+  private ByteBuffer           bb;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    int step = 0, max = 0;
+    if(!delay.equals("none")) {
+      String[] parts = delay.split("/");
+      step = Integer.parseInt(parts[0]);
+      max  = Integer.parseInt(parts[1]);
+    }
+    chnl = new InputStreamToChannel("Bench In", new Source(), maxInFlight, rdBfrSz, step, max, true);
+    chnl.setBlocking(true);
+    bb   = ByteBuffer.allocate(consumerSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    chnl.close();
+  }
+
+  /** Bytes moved - reported per second alongside ops/s */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Bytes {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() { bytes = 0; }
+  }
+
+  @Benchmark
+  public int read(Bytes moved) throws IOException {
+    bb.clear();
+    int n = chnl.read(bb);
+    moved.bytes += n;
+    return n;
+  }
+
+  /** Endless InputStream - fills the array, except every 1024th read returns 0 bytes */
+  static class Source extends InputStream {
+    private int nReads = 0;
+
+    public int read() { return 'x'; }
+    public int read(byte[] b, int off, int len) {
+      if((++nReads & 1023) == 0) return 0;
+      return len;             // Contents do not matter
+    }
+  }
+}
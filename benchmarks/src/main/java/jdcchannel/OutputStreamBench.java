@@ -0,0 +1,78 @@
+package jdcchannel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** JMH throughput of OutputStreamToChannel - each op is one write(ByteBuffer) of consumerSize bytes, in blocking
+ *  mode, so once maxInFlight is full each write waits for the thread to send to the OutputStream.
+ *
+ *  ops/s is the score, bytes/s is the 'bytes' secondary result. For allocation per byte run with -prof gc and divide
+ *  gc.alloc.rate.norm (bytes per op) by consumerSize.
+ *
+ *  No Delay axis - the thread parks until written to, so the sleep settings are not used.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutputStreamBench {
+
+  @Param({ "1", "64", "4096", "65536", "1048576" })
+  public int consumerSize;
+
+  @Param({ "1024", "8192", "65536" })
+  public int maxWriteSz;
+
+  @Param({ "65536", "1048576" })
+  public int maxInFlight;
+
+  private OutputStreamToChannel chnl;
+  private ByteBuffer            bb;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    chnl = new OutputStreamToChannel("Bench Out", new Sink(), maxInFlight, maxWriteSz);
+    chnl.setBlocking(true);
+    bb   = ByteBuffer.allocate(consumerSize);
+  }
+
+  /** Let the thread catch up, so one iteration's backlog is not counted in the next */
+  @TearDown(Level.Iteration)
+  public void drain() throws IOException {
+    chnl.flush();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    chnl.close();
+  }
+
+  /** Bytes moved - reported per second alongside ops/s */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Bytes {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() { bytes = 0; }
+  }
+
+  @Benchmark
+  public int write(Bytes moved) throws IOException {
+    bb.clear();
+    int n = chnl.write(bb);
+    moved.bytes += n;
+    return n;
+  }
+
+  /** OutputStream which discards what it receives */
+  static class Sink extends OutputStream {
+    public void write(int b)                        { }
+    public void write(byte[] b, int off, int len)   { }
+  }
+}
@@ -0,0 +1,168 @@
+package jdcchannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.WritePendingException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** An AsynchronousByteChannel on top of an InputStreamToChannel and/or OutputStreamToChannel.
+ *
+ *  A read (or write) which cannot proceed at once is left pending, and is completed by the internal thread of the
+ *  stream channel as soon as data is staged (or queue space frees up) - no caller thread polls.
+ *
+ *  NOTE: The CompletionHandler (or dependent stages of the CompletableFuture) may run on the internal thread, so
+ *        they should not block. The stream channels are switched to non-blocking mode.
+ */
+public class AsyncStreamChannel implements AsynchronousByteChannel {
+
+  private final InputStreamToChannel          in;
+  private final OutputStreamToChannel         out;
+  private final AtomicReference<Pending>      pendingRead   = new AtomicReference<>();
+  private final AtomicReference<Pending>      pendingWrite  = new AtomicReference<>();
+  private final Runnable                      inListener    = this::tryRead;
+  private final Runnable                      outListener   = this::tryWrite;
+  private volatile boolean                    open          = true;
+
+  /** Either 'in' or 'out' may be null - a read (or write) then throws NonReadable (NonWritable) ChannelException */
+  public AsyncStreamChannel(InputStreamToChannel in, OutputStreamToChannel out) {
+    this.in   = in;
+    this.out  = out;
+    if(in != null) {
+      in.setBlocking(false);
+      in.addStateListener(inListener);
+    }
+    if(out != null) {
+      out.setBlocking(false);
+      out.addStateListener(outListener);
+    }
+  }
+
+  /** Both directions of a SocketToSocketChannel */
+  public AsyncStreamChannel(SocketToSocketChannel chnl) {
+    this(chnl.instrm, chnl.outputStreamChannel());
+  }
+
+  public boolean isOpen() { return open; }
+
+  public <A> void read(ByteBuffer dst, A attachment, CompletionHandler<Integer, ? super A> handler) {
+    whenDone(read(dst), attachment, handler);
+  }
+
+  public CompletableFuture<Integer> read(ByteBuffer dst) {
+    if(in == null) throw new NonReadableChannelException();
+    if(dst.isReadOnly()) throw new IllegalArgumentException("Read-only buffer");
+    return start(pendingRead, new Pending(dst), new ReadPendingException(), this::tryRead);
+  }
+
+  public <A> void write(ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler) {
+    whenDone(write(src), attachment, handler);
+  }
+
+  public CompletableFuture<Integer> write(ByteBuffer src) {
+    if(out == null) throw new NonWritableChannelException();
+    return start(pendingWrite, new Pending(src), new WritePendingException(), this::tryWrite);
+  }
+
+  /** Fail any pending operations with AsynchronousCloseException, then close the stream channels. Called from a
+   *  completion on the internal thread of the output side, the output is only closed once drained, without waiting -
+   *  see OutputStreamToChannel.close().
+   */
+  public void close() throws IOException {
+    if(!open) return;
+    open = false;
+    if(in != null)  in.removeStateListener(inListener);
+    if(out != null) out.removeStateListener(outListener);
+    fail(pendingRead, new AsynchronousCloseException());
+    fail(pendingWrite, new AsynchronousCloseException());
+    try {
+      if(out != null) out.close();
+    } finally {
+      if(in != null) in.close();
+    }
+  }
+
+  private CompletableFuture<Integer> start(AtomicReference<Pending> slot, Pending op, RuntimeException busy, Runnable attempt) {
+    if(!open) {
+      op.future.completeExceptionally(new ClosedChannelException());
+      return op.future;
+    }
+    Pending prev = slot.get();
+    if(prev != null && prev.future.isDone()) slot.compareAndSet(prev, null);   // Cancelled, and not yet cleared
+    if(!slot.compareAndSet(null, op)) throw busy;
+    attempt.run();        // Data may already be there - else completed later by the internal thread
+    return op.future;
+  }
+
+  /** Try to complete the pending read - called by the caller, and by the internal thread when data is staged */
+  private void tryRead() {
+    Pending op = pendingRead.get();
+    if(op == null) return;
+    synchronized(op) {
+      if(op.future.isDone()) {              // Cancelled
+        pendingRead.compareAndSet(op, null);
+        return;
+      }
+      try {
+        int n = op.bfr.hasRemaining() ? in.read(op.bfr) : 0;
+        if(n != 0 || !op.bfr.hasRemaining()) complete(pendingRead, op, n);
+      } catch(Exception ex) {
+        complete(pendingRead, op, ex);
+      }
+    }
+  }
+
+  /** Try to complete the pending write - called by the caller, and by the internal thread when the queue drains */
+  private void tryWrite() {
+    Pending op = pendingWrite.get();
+    if(op == null) return;
+    synchronized(op) {
+      if(op.future.isDone()) {              // Cancelled
+        pendingWrite.compareAndSet(op, null);
+        return;
+      }
+      try {
+        int n = op.bfr.hasRemaining() ? out.write(op.bfr) : 0;
+        if(n != 0 || !op.bfr.hasRemaining()) complete(pendingWrite, op, n);
+      } catch(Exception ex) {
+        complete(pendingWrite, op, ex);
+      }
+    }
+  }
+
+  /** Clear the slot first, so the completion may start the next operation */
+  private void complete(AtomicReference<Pending> slot, Pending op, Object rslt) {
+    slot.compareAndSet(op, null);
+    if(rslt instanceof Exception) op.future.completeExceptionally((Exception) rslt);
+    else                          op.future.complete((Integer) rslt);
+  }
+
+  private void fail(AtomicReference<Pending> slot, Exception ex) {
+    Pending op = slot.getAndSet(null);
+    if(op != null) op.future.completeExceptionally(ex);
+  }
+
+  private static <A> void whenDone(CompletableFuture<Integer> future, A attachment, CompletionHandler<Integer, ? super A> handler) {
+    if(handler == null) throw new NullPointerException("handler");
+    future.whenComplete((n, ex) -> {
+      if(ex == null) handler.completed(n, attachment);
+      else           handler.failed(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex, attachment);
+    });
+  }
+
+  /** A read or write waiting for data or queue space */
+  private static class Pending {
+    final ByteBuffer                  bfr;
+    final CompletableFuture<Integer>  future = new CompletableFuture<>();
+
+    Pending(ByteBuffer bfr) { this.bfr = bfr; }
+  }
+}
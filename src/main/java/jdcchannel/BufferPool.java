@@ -0,0 +1,130 @@
+package jdcchannel;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A pool of byte[] in power-of-two size classes, shared by the InputStreamToChannel and OutputStreamToChannel
+ *  queues so the data passing through does not allocate a new byte[] for every chunk.
+ *
+ *  Each thread which acquires keeps a small cache per size class, backed by a global free list per size class.
+ *  Released buffers go to the releasing thread's cache and overflow to the global list. A thread which only
+ *  releases (e.g. the internal thread of OutputStreamToChannel) has no cache, so its buffers go straight to the
+ *  global list - otherwise every such thread would hold on to a full cache it never uses.
+ *
+ *  Buffers larger than the biggest size class are allocated exactly and are not pooled. The buffers are on-heap,
+ *  since the InputStream and OutputStream need a byte[] anyway.
+ */
+public class BufferPool {
+
+  private static final BufferPool shared = new BufferPool(64, 1024 * 1024, 4 * 1024 * 1024, 16);
+
+  /** The pool used by all of the stream channels */
+  public static BufferPool shared() { return shared; }
+
+  private final int                   minShift;
+  private final int                   maxShift;
+  private final int                   localMax;
+  private final Stack[]               global;
+  private final ThreadLocal<Stack[]>  local;
+
+  private final LongAdder             numAllocated  = new LongAdder();
+  private final LongAdder             numReused     = new LongAdder();
+
+  /**
+   * @param minSize         - smallest size class, rounded up to a power of 2
+   * @param maxSize         - largest size class, rounded up to a power of 2. Larger requests are not pooled.
+   * @param maxGlobalBytes  - max bytes held in the global free list of each size class
+   * @param localMax        - max buffers held in each thread's cache of each size class
+   */
+  public BufferPool(int minSize, int maxSize, int maxGlobalBytes, int localMax) {
+    if(minSize <= 0) throw new IllegalArgumentException("minSize must be > 0");
+    if(maxSize < minSize || maxSize > (1 << 30)) throw new IllegalArgumentException("maxSize must be >= minSize and <= 2^30");
+    if(localMax < 0) throw new IllegalArgumentException("localMax must be >= 0");
+
+    this.minShift = shiftFor(minSize);
+    this.maxShift = shiftFor(maxSize);
+    this.localMax = localMax;
+    this.global   = new Stack[maxShift - minShift + 1];
+    for(int i=0; i<global.length; i++) global[i] = new Stack(Math.max(1, maxGlobalBytes >> (minShift + i)));
+    this.local    = new ThreadLocal<>();    // Created by the first acquire(...) of each thread
+  }
+
+  /** Return a buffer of at least 'minSize' bytes - the length is the size class, so may be larger */
+  public byte[] acquire(int minSize) {
+    int shift = shiftFor(minSize);
+    if(shift > maxShift) {
+      numAllocated.increment();
+      return new byte[minSize];
+    }
+    int     cls    = Math.max(0, shift - minShift);
+    Stack[] stacks = local.get();
+    if(stacks == null) local.set(stacks = newCache());
+    byte[]  bfr    = stacks[cls].pop();
+    if(bfr == null) {
+      Stack g = global[cls];
+      synchronized(g) { bfr = g.pop(); }
+    }
+    if(bfr == null) {
+      numAllocated.increment();
+      return new byte[1 << (cls + minShift)];
+    }
+    numReused.increment();
+    return bfr;
+  }
+
+  /** Return a buffer to the pool. It must not be used by the caller afterwards. Ignored if not from a size class. */
+  public void release(byte[] bfr) {
+    int len = bfr.length;
+    if(Integer.bitCount(len) != 1) return;
+    int shift = Integer.numberOfTrailingZeros(len);
+    if(shift < minShift || shift > maxShift) return;
+
+    int     cls    = shift - minShift;
+    Stack[] stacks = local.get();           // null == this thread never acquires, so keeps no cache
+    if(stacks == null || !stacks[cls].push(bfr)) {
+      Stack g = global[cls];
+      synchronized(g) { g.push(bfr); }
+    }
+  }
+
+  private Stack[] newCache() {
+    Stack[] stacks = new Stack[global.length];
+    for(int i=0; i<stacks.length; i++) stacks[i] = new Stack(localMax);
+    return stacks;
+  }
+
+  /** Number of buffers which had to be allocated - stays flat once the pool is warmed up */
+  public long numAllocated()  { return numAllocated.sum(); }
+  /** Number of buffers handed out again from the pool */
+  public long numReused()     { return numReused.sum(); }
+
+  private static int shiftFor(int size) {
+    return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+
+  /** Bounded stack of buffers - not thread-safe, the global ones are synchronized by the caller. The array starts
+   *  small and doubles up to 'max' as buffers are pushed, so a size class which is never used costs next to nothing.
+   */
+  private static class Stack {
+    private final int      max;
+    private byte[][]       items;
+    private int            size = 0;
+
+    Stack(int max)            { this.max = max; items = new byte[Math.min(max, 16)][]; }
+
+    boolean push(byte[] bfr) {
+      if(size == items.length) {
+        if(size == max) return false;
+        items = Arrays.copyOf(items, (int) Math.min((long) size * 2, max));
+      }
+      items[size++] = bfr;
+      return true;
+    }
+    byte[] pop() {
+      if(size == 0) return null;
+      byte[] bfr    = items[--size];
+      items[size]   = null;
+      return bfr;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package jdcchannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Lock-free single-producer / single-consumer ring of bytes - an alternative to the queue of byte[] used to
+ *  stage data in InputStreamToChannel and OutputStreamToChannel.
+ *
+ *  The capacity is a power of two, so positions are simple counters masked into the array. Once allocated
+ *  nothing else is allocated, and a partial read just advances the head.
+ *
+ *  NOTE: Exactly one thread may call the producer methods (put, readFrom) and exactly one thread may call the
+ *        consumer methods (get, writeTo) at any one time. The data is on-heap since the InputStream and
+ *        OutputStream need a byte[] anyway.
+ */
+public class ByteRing {
+
+  private final byte[]      data;
+  private final int         mask;
+  private final AtomicLong  head  = new AtomicLong(0);     // Next byte to be consumed - only the consumer changes it
+  private final AtomicLong  tail  = new AtomicLong(0);     // Next byte to be produced - only the producer changes it
+
+  /** @param minCapacity - rounded up to a power of two, must be > 0 */
+  public ByteRing(int minCapacity) {
+    if(minCapacity <= 0) throw new IllegalArgumentException("minCapacity must be > 0");
+    if(minCapacity > (1 << 30)) throw new IllegalArgumentException("minCapacity must be <= 2^30");
+
+    int cap = Integer.highestOneBit(minCapacity);
+    if(cap < minCapacity) cap <<= 1;
+    data = new byte[cap];
+    mask = cap - 1;
+  }
+
+  public int capacity()     { return data.length; }
+  /** Number of bytes staged - may be stale as soon as it is returned */
+  public int size()         { return (int) (tail.get() - head.get()); }
+  public int free()         { return data.length - size(); }
+  public boolean isEmpty()  { return tail.get() == head.get(); }
+
+  /************************************** Producer **************************************/
+
+  /** Copy as much of src as fits into the ring, return the number of bytes copied */
+  public int put(ByteBuffer src) {
+    return put(src, Integer.MAX_VALUE);
+  }
+
+  /** Copy up to 'max' bytes from src into the free space - returns the number of bytes copied */
+  public int put(ByteBuffer src, int max) {
+    long t   = tail.get();
+    int  amt = Math.min(Math.min(src.remaining(), max), data.length - (int) (t - head.get()));
+    int  idx = (int) t & mask;
+    int  one = Math.min(amt, data.length - idx);
+    src.get(data, idx, one);
+    if(one < amt) src.get(data, 0, amt - one);
+    tail.lazySet(t + amt);
+    return amt;
+  }
+
+  /** Read directly from the InputStream into the free space, up to 'max' bytes (may block).
+   *  @return the number of bytes read, 0 if the ring is full, -1 if EOF
+   */
+  public int readFrom(InputStream in, int max) throws IOException {
+    long t    = tail.get();
+    int  free = data.length - (int) (t - head.get());
+    if(free == 0 || max <= 0) return 0;
+
+    int idx = (int) t & mask;
+    int n   = in.read(data, idx, Math.min(max, Math.min(free, data.length - idx)));
+    if(n > 0) tail.lazySet(t + n);
+    return n;
+  }
+
+  /************************************** Consumer **************************************/
+
+  /** Copy as much as possible into dst, return the number of bytes copied */
+  public int get(ByteBuffer dst) {
+    long h   = head.get();
+    int  amt = Math.min(dst.remaining(), (int) (tail.get() - h));
+    int  idx = (int) h & mask;
+    int  one = Math.min(amt, data.length - idx);
+    dst.put(data, idx, one);
+    if(one < amt) dst.put(data, 0, amt - one);
+    head.lazySet(h + amt);
+    return amt;
+  }
+
+  /** Write staged data directly to the OutputStream, up to 'max' bytes in a single write (may block).
+   *  Only the contiguous data up to the end of the array is written, so a wrapped ring needs two calls.
+   *  @return the number of bytes written, 0 if empty
+   */
+  public int writeTo(OutputStream out, int max) throws IOException {
+    long h    = head.get();
+    int  used = (int) (tail.get() - h);
+    if(used == 0 || max <= 0) return 0;
+
+    int idx = (int) h & mask;
+    int len = Math.min(max, Math.min(used, data.length - idx));
+    out.write(data, idx, len);
+    head.lazySet(h + len);
+    return len;
+  }
+}
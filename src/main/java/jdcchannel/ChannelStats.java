@@ -0,0 +1,123 @@
+package jdcchannel;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Publishes the metrics of stream channels through JMX.
+ *
+ *  InOutCommon.registerMBean() registers a per-channel MBean named
+ *    jdcchannel:type=StreamChannel,name="label",id=identityHashCode
+ *  and the first registration also registers the aggregate over all registered channels as
+ *    jdcchannel:type=StreamChannels,name=Aggregate
+ *  A channel is unregistered (and drops out of the aggregate) when it is closed.
+ *
+ *  Attributes are computed when read, so an idle MBean costs nothing on the data path.
+ */
+public class ChannelStats implements ChannelStatsMBean {
+
+  public static final String aggregateName = "jdcchannel:type=StreamChannels,name=Aggregate";
+
+  private static final Set<InOutCommon> registered  = ConcurrentHashMap.newKeySet();
+  private static volatile boolean       aggregateUp = false;
+
+  private final String                  label;
+  private final Collection<InOutCommon> chnls;
+
+  private ChannelStats(String label, Collection<InOutCommon> chnls) {
+    this.label  = label;
+    this.chnls  = chnls;
+  }
+
+  /** Metrics of a single channel */
+  public static ChannelStats of(InOutCommon chnl)  { return new ChannelStats(chnl.label, Collections.singleton(chnl)); }
+  /** Metrics summed over all channels currently registered with JMX */
+  public static ChannelStats aggregate()           { return new ChannelStats("Aggregate", registered); }
+
+  static ObjectName register(InOutCommon chnl) throws JMException {
+    MBeanServer srvr = ManagementFactory.getPlatformMBeanServer();
+    synchronized(registered) {
+      if(!aggregateUp) {
+        ObjectName agg = new ObjectName(aggregateName);
+        if(!srvr.isRegistered(agg)) srvr.registerMBean(aggregate(), agg);
+        aggregateUp = true;
+      }
+    }
+    ObjectName name = new ObjectName("jdcchannel:type=StreamChannel,name=" + ObjectName.quote(chnl.label)
+                                     + ",id=" + System.identityHashCode(chnl));
+    srvr.registerMBean(of(chnl), name);
+    registered.add(chnl);
+    return name;
+  }
+
+  static void unregister(InOutCommon chnl, ObjectName name) {
+    registered.remove(chnl);
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch(JMException e) {
+      // Already unregistered by someone else
+    }
+  }
+
+  public String getLabel()              { return label; }
+  public int    getChannelCount()       { return chnls.size(); }
+  public long   getInFlight()           { return sum(c -> Math.max(0, c.inFlight.get())); }
+
+  public long   getNumReads()           { return sum(InOutCommon::numReads); }
+  public long   getDataRead()           { return sum(InOutCommon::dataRead); }
+  public long   getNumWrites()          { return sum(InOutCommon::numWrites); }
+  public long   getDataSent()           { return sum(InOutCommon::dataSent); }
+  public long   getRejections()         { return sum(c -> c.rejections.sum()); }
+
+  public long   getChunkCount()         { return chunkSizes().count(); }
+  public long   getChunkSizeMean()      { return chunkSizes().mean(); }
+  public long   getChunkSizeP99()       { return chunkSizes().percentile(99); }
+  public long   getChunkSizeMax()       { return chunkSizes().max(); }
+
+  public long   getResidencyMeanMicros() { return residency().mean() / 1000; }
+  public long   getResidencyP50Micros()  { return residency().percentile(50) / 1000; }
+  public long   getResidencyP99Micros()  { return residency().percentile(99) / 1000; }
+  public long   getResidencyP999Micros() { return residency().percentile(99.9) / 1000; }
+  public long   getResidencyMaxMicros()  { return residency().max() / 1000; }
+
+  public long   getStallCount()         { return stalls().count(); }
+  public long   getStallTotalMicros()   { return stalls().sum() / 1000; }
+  public long   getStallP99Micros()     { return stalls().percentile(99) / 1000; }
+  public long   getStallMaxMicros()     { return stalls().max() / 1000; }
+
+  public void resetHistograms() {
+    for(InOutCommon c : chnls) {
+      c.rejections.reset();
+      c.chunkSizes.reset();
+      c.residency.reset();
+      c.stalls.reset();
+    }
+  }
+
+  private long sum(ToLongFunction<InOutCommon> f) {
+    long total = 0;
+    for(InOutCommon c : chnls) total += f.applyAsLong(c);
+    return total;
+  }
+
+  private Histogram chunkSizes()  { return merged(c -> c.chunkSizes); }
+  private Histogram residency()   { return merged(c -> c.residency); }
+  private Histogram stalls()      { return merged(c -> c.stalls); }
+
+  /** A single channel's own histogram, else a merged copy across the channels */
+  private Histogram merged(Function<InOutCommon, Histogram> pick) {
+    if(chnls.size() == 1) {
+      for(InOutCommon c : chnls) return pick.apply(c);
+    }
+    Histogram h = new Histogram();
+    for(InOutCommon c : chnls) pick.apply(c).addTo(h);
+    return h;
+  }
+}
@@ -0,0 +1,40 @@
+package jdcchannel;
+
+/** JMX view of the metrics of one stream channel, or the aggregate of all registered channels - see ChannelStats.
+ *  Times are in microseconds, sizes in bytes.
+ */
+public interface ChannelStatsMBean {
+
+  String  getLabel();
+  int     getChannelCount();
+  long    getInFlight();
+
+  long    getNumReads();
+  long    getDataRead();
+  long    getNumWrites();
+  long    getDataSent();
+
+  /** Backpressure - InputStream reads held at the high-water mark, or writes refused since the queue was full */
+  long    getRejections();
+
+  long    getChunkCount();
+  long    getChunkSizeMean();
+  long    getChunkSizeP99();
+  long    getChunkSizeMax();
+
+  /** Time from staging a chunk until it was consumed - queue staging only */
+  long    getResidencyMeanMicros();
+  long    getResidencyP50Micros();
+  long    getResidencyP99Micros();
+  long    getResidencyP999Micros();
+  long    getResidencyMaxMicros();
+
+  /** Time the internal thread was held up - see InOutCommon.stalls */
+  long    getStallCount();
+  long    getStallTotalMicros();
+  long    getStallP99Micros();
+  long    getStallMaxMicros();
+
+  /** Clear the histograms and rejection count - the totals of reads and writes are kept */
+  void    resetHistograms();
+}
@@ -0,0 +1,37 @@
+package jdcchannel;
+
+import java.nio.ByteBuffer;
+
+/** An entry in the queue of InputStreamToChannel or OutputStreamToChannel - the valid data is data[off] to
+ *  data[off + len - 1]. The consumer advances 'off' on a partial read instead of copying the rest.
+ *
+ *  'data' usually comes from the BufferPool, and is released back to it once the chunk has been consumed.
+ *  An owned chunk (see OutputStreamToChannel.writeOwned) refers to the caller's buffer instead - its backing array,
+ *  or 'direct' if it has none - and 'onSent' hands the buffer back to the caller rather than to the pool.
+ */
+class Chunk {
+  final byte[]      data;
+  int               off;
+  int               len;
+  final long        staged  = System.nanoTime();    // For the queue residency metric
+  final ByteBuffer  direct;                         // Owned buffer without an accessible array - 'data' is null
+  final Runnable    onSent;                         // Not null == an owned chunk
+
+  Chunk(byte[] data, int off, int len) {
+    this(data, off, len, null, null);
+  }
+  Chunk(byte[] data, int off, int len, ByteBuffer direct, Runnable onSent) {
+    this.data   = data;
+    this.off    = off;
+    this.len    = len;
+    this.direct = direct;
+    this.onSent = onSent;
+  }
+
+  /** Mark 'amt' bytes consumed, return true if the chunk is now empty */
+  boolean consume(int amt) {
+    off += amt;
+    len -= amt;
+    return len == 0;
+  }
+}
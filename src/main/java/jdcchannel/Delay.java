@@ -1,7 +1,11 @@
 package jdcchannel;
 
-/** Provide an increasing Delay of a process - thread-safe */
-public class Delay {
+/** Provide an increasing Delay of a process. Millisecond sleeps, see WaitStrategy for finer waits.
+ *
+ *  NOTE: delay() keeps the current step in the instance, so callers sharing one Delay share (and race on) the steps.
+ *        As a WaitStrategy it keeps no state - idle(n) works out the step from n - so one may serve many channels.
+ */
+public class Delay implements WaitStrategy {
 
   private static final boolean bDebug = false;
   private static final boolean bStack = bDebug & false;
@@ -45,6 +49,15 @@ public class Delay {
     this.delayByDoubling  = delayByDouble;
     lastDelay             = 0;
   }
+  /** WaitStrategy - sleep for step n of the delay steps (n == 1 is delayStep). Does not change getLastDelay(). */
+  public void idle(int n) {
+    if(delayStep == 0) return;            // NO-OP, no delay at all
+    int  steps    = Math.max(0, n - 1);
+    long sleepFor = delayByDoubling ? (steps >= 31 ? delayMax : (long) delayStep << steps)
+                                    : (long) delayStep * (steps + 1);
+    threadSleep((int) Math.min(sleepFor, delayMax));
+  }
+
   /** Do a delay using all of the current delay & parameter settings */
   public void delay(){
     lastDelay = delay(lastDelay, delayStep, delayMax, delayByDoubling);
@@ -0,0 +1,71 @@
+package jdcchannel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Thread-safe histogram of non-negative long values, in power-of-2 buckets - bucket 0 holds 0, bucket i holds
+ *  values from 2^(i-1) to 2^i - 1. Recording is a few atomic increments with no allocation, so it may be used on
+ *  the hot path. Percentiles are therefore approximate - the upper bound of the bucket, capped at the max seen.
+ */
+public class Histogram {
+
+  private static final int  nBuckets  = 64;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(nBuckets);
+  private final AtomicLong      count   = new AtomicLong(0);
+  private final AtomicLong      sum     = new AtomicLong(0);
+  private final AtomicLong      max     = new AtomicLong(0);
+
+  /** Record a value - negative values are counted as 0 */
+  public void record(long value) {
+    if(value < 0) value = 0;
+    buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(value), nBuckets - 1));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long m;
+    while(value > (m = max.get()) && !max.compareAndSet(m, value)) { }
+  }
+
+  public long count() { return count.get(); }
+  public long sum()   { return sum.get(); }
+  public long max()   { return max.get(); }
+  public long mean()  { long n = count.get(); return n == 0 ? 0 : sum.get() / n; }
+
+  /** Approximate value at the percentile, 0.0 to 100.0 - 0 if nothing recorded */
+  public long percentile(double pct) {
+    if(pct < 0 || pct > 100) throw new IllegalArgumentException("pct must be 0 to 100, got " + pct);
+    long n = count.get();
+    if(n == 0) return 0;
+
+    long target = Math.max(1, (long) Math.ceil(n * pct / 100.0));
+    long seen   = 0;
+    for(int i=0; i<nBuckets; i++) {
+      seen += buckets.get(i);
+      if(seen >= target) return Math.min(i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1, max.get());
+    }
+    return max.get();
+  }
+
+  /** Add all the values recorded in this histogram to 'into' - used to build an aggregate */
+  public void addTo(Histogram into) {
+    for(int i=0; i<nBuckets; i++) {
+      long n = buckets.get(i);
+      if(n != 0) into.buckets.addAndGet(i, n);
+    }
+    into.count.addAndGet(count.get());
+    into.sum.addAndGet(sum.get());
+    long v = max.get(), m;
+    while(v > (m = into.max.get()) && !into.max.compareAndSet(m, v)) { }
+  }
+
+  public void reset() {
+    for(int i=0; i<nBuckets; i++) buckets.set(i, 0);
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  public String toString() {
+    return "count=" + count() + ", mean=" + mean() + ", p50=" + percentile(50) + ", p99=" + percentile(99) + ", max=" + max();
+  }
+}
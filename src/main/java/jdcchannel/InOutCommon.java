@@ -1,8 +1,15 @@
 package jdcchannel;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.*;
+import java.util.function.BooleanSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class InOutCommon {
 
@@ -16,39 +23,243 @@ public class InOutCommon {
   protected final boolean bThread   = bDebug && false;
 
   // Active only for InputStreamToChannel
-  protected AtomicInteger numReads  = new AtomicInteger(0);  // Physical reads of InputStream that completed
-  protected AtomicInteger dataRead  = new AtomicInteger(0);  // Total number of bytes read from InputStream
+  protected final LongAdder numReads  = new LongAdder();  // Physical reads of InputStream that completed
+  protected final LongAdder dataRead  = new LongAdder();  // Total number of bytes read from InputStream
   // Active only for OutputStreamToChannel
-  protected AtomicInteger numWrites = new AtomicInteger(0);  // How many writes to OutputStream
-  protected AtomicInteger dataWrtn  = new AtomicInteger(0);  // Total data sent to OutputStream
+  protected final LongAdder numWrites = new LongAdder();  // How many writes to OutputStream
+  protected final LongAdder dataWrtn  = new LongAdder();  // Total data sent to OutputStream
 
   protected AtomicInteger inFlight  = new AtomicInteger(0);   // Applies to either InputStream or OutputStream
 
+  // Metrics - published through JMX by registerMBean(), see ChannelStats
+  protected final LongAdder rejections  = new LongAdder();  // Backpressure - In: reads held at highWater, Out: writes refused
+  protected final Histogram chunkSizes  = new Histogram();  // Bytes per chunk staged
+  protected final Histogram residency   = new Histogram();  // Nanos from staging a chunk until consumed - queue staging only
+  protected final Histogram stalls      = new Histogram();  // Nanos the thread was held up - In: Delay after an empty read or
+                                                            // parked at highWater, Out: blocked in OutputStream.write
+  private ObjectName              mbeanName   = null;
 
 
+
+  private static volatile ThreadFactory defaultThreadFactory = PumpThreads.platform();
+  private static volatile MemoryBudget  defaultBudget        = null;
+
   protected          boolean    threwAlready    = false; // Throw only once, then throw ClosedSocketException
   protected volatile Thread     thrd            = null;  // When set back to null, at EOF or Exception
   protected volatile Exception  ex              = null;  // If the Input/OutputStream throws an Exception
 
   protected String label                        = "";
-  protected ConcurrentLinkedDeque<byte[]> queue = new ConcurrentLinkedDeque<>();
+  protected ConcurrentLinkedDeque<Chunk>  queue = new ConcurrentLinkedDeque<>();
+  protected ByteRing                      ring  = null;    // If not null, used to stage the data instead of the queue
+  protected BufferPool                    pool  = BufferPool.shared();  // Source of the byte[] for the queue Chunks
+
+  // Callbacks run whenever the readiness of this channel may have changed - see signalState()
+  protected final CopyOnWriteArrayList<Runnable> stateListeners = new CopyOnWriteArrayList<>();
+
+  protected volatile MemoryBudget budget        = null;                 // Shared cap on staged data, null == none
+  protected final AtomicLong      budgetHeld    = new AtomicLong(0);     // Reserved from the budget by this channel
+
+  protected volatile WaitStrategy waitStrategy = null;                 // null == the default waits of each channel
+
+  protected volatile boolean    blocking        = false;                  // If true, read/write wait instead of returning 0
+  protected final Object        waitLock        = new Object();           // Callers waiting for a state change wait on this
+  protected final AtomicInteger waiters         = new AtomicInteger(0);   // Number of callers waiting on waitLock
+
+  /** The ThreadFactory used for the internal thread of every channel created without one - see PumpThreads */
+  public static ThreadFactory getDefaultThreadFactory()               { return defaultThreadFactory; }
+  public static void setDefaultThreadFactory(ThreadFactory factory)   {
+    if(factory == null) throw new IllegalArgumentException("factory must not be null");
+    defaultThreadFactory = factory;
+  }
+
+  /** The MemoryBudget joined by every channel created from now on - null == none (the default) */
+  public static MemoryBudget getDefaultMemoryBudget()             { return defaultBudget; }
+  public static void setDefaultMemoryBudget(MemoryBudget budget)  { defaultBudget = budget; }
+
+  /** Create and start the internal thread using 'factory', or the default ThreadFactory if null. Joins the default
+   *  MemoryBudget first, if any. */
+  protected void startThread(Runnable pump, ThreadFactory factory) {
+    MemoryBudget b = defaultBudget;
+    if(b != null) setMemoryBudget(b);
+    thrd = (factory == null ? defaultThreadFactory : factory).newThread(pump);
+    thrd.start();
+  }
 
   /** Amount of data currently staged in the internal buffer
    *  NOTE: Returns -1 if EOF
    **/
-  public int inFlight()   { return thrd==null ? -1 : inFlight.get(); }
+  public int inFlight()   { return thrd==null && inFlight.get() <= 0 ? -1 : inFlight.get(); }
   public int available()  { return inFlight(); }
+  /** True if the data is staged in a ByteRing rather than a queue of byte[] */
+  public boolean isRingStaged() { return ring != null; }
+  /** True if nothing is staged in the queue or ring */
+  protected boolean isStagingEmpty() { return ring != null ? ring.isEmpty() : queue.isEmpty(); }
+
   /** Number of physical reads completed on the InputStream */
-  public int numReads()   { return numReads.get(); }
+  public long numReads()   { return numReads.sum(); }
   /** Total data read from the InputStream */
-  public int dataRead()   { return dataRead.get(); }
+  public long dataRead()   { return dataRead.sum(); }
 
   /** The number of physical writes completed to the OutputStream.
    *  Note: May not match calls to write(ByteBuffer data) method since data may be accumulated into a single write.
    */
-  public int numWrites()   { return numWrites.get(); }
+  public long numWrites()   { return numWrites.sum(); }
   /** Total number of bytes sent to the OutputStream */
-  public int dataSent()    { return dataWrtn.get(); }
+  public long dataSent()    { return dataWrtn.sum(); }
+
+  /** The metrics of this channel - the same view which registerMBean() publishes */
+  public ChannelStats stats() { return ChannelStats.of(this); }
+
+  /** Publish the metrics of this channel as a JMX MBean, until closed - see ChannelStats. Returns the ObjectName. */
+  public synchronized ObjectName registerMBean() throws JMException {
+    if(mbeanName == null) mbeanName = ChannelStats.register(this);
+    return mbeanName;
+  }
+
+  /** Remove the JMX MBean, if registered - done by close() */
+  public synchronized void unregisterMBean() {
+    if(mbeanName != null) {
+      ChannelStats.unregister(this, mbeanName);
+      mbeanName = null;
+    }
+  }
+
+  /** Record the time the internal thread was held up, since 'startNanos' */
+  protected void stalled(long startNanos) { stalls.record(System.nanoTime() - startNanos); }
+
+  /** Add a callback which is run whenever data is staged or drained, at EOF, on close, or if an Exception occurs.
+   *  NOTE: Usually called on the internal thread, so the callback must be quick and must not block.
+   */
+  public void addStateListener(Runnable listener)     { stateListeners.add(listener); }
+  public void removeStateListener(Runnable listener)  { stateListeners.remove(listener); }
+
+  /** Notify all the state listeners (and any waiting callers) that the readiness of this channel may have changed */
+  protected void signalState() {
+    for(Runnable listener : stateListeners) listener.run();
+    if(waiters.get() > 0) {
+      synchronized(waitLock) { waitLock.notifyAll(); }
+    }
+  }
+
+  /** Reserve the data staged by this channel from a MemoryBudget shared with other channels - null == none.
+   *  NOTE: Data already staged when the budget is set is not counted.
+   */
+  public synchronized void setMemoryBudget(MemoryBudget budget) {
+    MemoryBudget old = this.budget;
+    if(old == budget) return;
+    if(old != null) {
+      old.release(budgetHeld.getAndSet(0));
+      old.leave();
+    }
+    if(budget != null) budget.join();
+    this.budget = budget;
+    signalState();
+  }
+  public MemoryBudget getMemoryBudget() { return budget; }
+
+  /** Reserve up to 'want' bytes from the budget - returns the amount granted, 'want' if there is no budget */
+  protected int reserve(int want) {
+    MemoryBudget b = budget;
+    if(b == null || want <= 0) return want;
+    int n = b.reserve(want, budgetHeld.get());
+    budgetHeld.addAndGet(n);
+    return n;
+  }
+
+  /** Reserve all of 'amount' bytes from the MemoryBudget, or none */
+  protected boolean reserveAll(int amount) {
+    int n = reserve(amount);
+    if (n == amount) return true;
+    unreserve(n);
+    return false;
+  }
+
+  /** Reserve 'amount' bytes even if over the budget - for data which cannot be split, larger than any fair share */
+  protected void reserveOver(int amount) {
+    MemoryBudget b = budget;
+    if(b == null || amount <= 0) return;
+    b.force(amount);
+    budgetHeld.addAndGet(amount);
+  }
+
+  /** How much of 'want' bytes reserve(...) could grant now, without reserving them */
+  protected int reservable(int want) {
+    MemoryBudget b = budget;
+    return b == null ? want : b.available(want, budgetHeld.get());
+  }
+
+  /** Return 'amount' bytes to the budget, no more than this channel holds */
+  protected void unreserve(long amount) {
+    MemoryBudget b = budget;
+    if(b == null || amount <= 0) return;
+    long held = budgetHeld.getAndUpdate(h -> Math.max(0, h - amount));
+    b.release(Math.min(held, amount));
+  }
+
+  /** Leave the budget when closed */
+  protected void leaveBudget() { setMemoryBudget(null); }
+
+  /** How the internal thread waits while it has nothing to do - null restores the default, see WaitStrategy.
+   *  The defaults: InputStreamToChannel - the Delay settings after an empty read, parks at the high-water mark.
+   *                OutputStreamToChannel - spins for getSpinCount() checks, then parks.
+   */
+  public void setWaitStrategy(WaitStrategy strategy) { waitStrategy = strategy; }
+  public WaitStrategy getWaitStrategy()               { return waitStrategy; }
+
+  /** Wait with the WaitStrategy (or 'dflt' if none is set) until 'ready', or closed */
+  protected void idleUntil(BooleanSupplier ready, WaitStrategy dflt) {
+    for(int n = 1; thrd != null && !ready.getAsBoolean(); n++) {
+      WaitStrategy strategy = waitStrategy;
+      (strategy != null ? strategy : dflt).idle(n);
+    }
+  }
+
+  /** True == read(...) / write(...) wait until they can transfer some data (read) or all of it (write), or EOF / error.
+   *  False (the default) == they return 0 if they cannot proceed.
+   */
+  public void setBlocking(boolean blocking) {
+    this.blocking = blocking;
+    signalState();
+  }
+  public boolean isBlocking() { return blocking; }
+
+  /** Wait until 'ready' is true, or the timeout expires.
+   *  @param timeoutNanos - 0 == do not wait, Long.MAX_VALUE == no timeout
+   *  @return the final value of 'ready'
+   */
+  protected boolean awaitState(BooleanSupplier ready, long timeoutNanos) throws InterruptedException {
+    if(ready.getAsBoolean()) return true;
+    if(timeoutNanos <= 0) return false;
+
+    long deadline = System.nanoTime() + timeoutNanos;
+    synchronized(waitLock) {
+      waiters.incrementAndGet();
+      try {
+        while(!ready.getAsBoolean()) {
+          if(timeoutNanos == Long.MAX_VALUE)
+            waitLock.wait();
+          else {
+            long left = deadline - System.nanoTime();
+            if(left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(waitLock, left);
+          }
+        }
+        return true;
+      } finally {
+        waiters.decrementAndGet();
+      }
+    }
+  }
+
+  /** Wait with no timeout until 'ready' - used by read/write in blocking mode. An interrupt throws InterruptedIOException. */
+  protected void awaitBlocking(BooleanSupplier ready) throws InterruptedIOException {
+    try {
+      awaitState(ready, Long.MAX_VALUE);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting on channel " + label);
+    }
+  }
 
   protected void throwIfEx() throws IOException {
     if(ex!=null && !threwAlready){
@@ -68,18 +279,27 @@ public class InOutCommon {
   protected final int     nItemSz= 64;      // max data to show
   
   protected String debugShowItem(int index, byte[] data){
+    return debugShowItem(index, data, 0, data.length);
+  }
+
+  protected String debugShowItem(int index, Chunk chunk){
+    if(chunk.data == null) return "  QItem[" + index + "](" + chunk.len + ") -- direct";
+    return debugShowItem(index, chunk.data, chunk.off, chunk.len);
+  }
+
+  protected String debugShowItem(int index, byte[] data, int off, int len){
     String s  = "";
     if(bDebug){
-      int    sz = data.length <= nItemSz ? data.length : nItemSz;
-      String mk = data.length > nItemSz ? "..." : "";
+      int    sz = len <= nItemSz ? len : nItemSz;
+      String mk = len > nItemSz ? "..." : "";
       for(int i=0; i<sz; i++){
-        byte b = data[i];
+        byte b = data[off + i];
         String sdata = "" + b;
-        if(32 <= b && b <= 126) sdata = String.valueOf((char) data[i]);
+        if(32 <= b && b <= 126) sdata = String.valueOf((char) b);
         s += sdata + ",";
         
       }
-      s = "  QItem[" + index + "](" + data.length + ") -- " + s + mk;
+      s = "  QItem[" + index + "](" + len + ") -- " + s + mk;
     }
     return s;
   }
@@ -96,7 +316,7 @@ public class InOutCommon {
       if(obj.length==0)
         debug(qStr);
       else for(int i=0; i<obj.length; i++){
-        debug(labelIn + debugShowItem(i, (byte[])obj[i]));
+        debug(labelIn + debugShowItem(i, (Chunk)obj[i]));
       }
     }
   }
@@ -1,48 +1,106 @@
 package jdcchannel;
 
+import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.*;
-import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
 
 /** Converts an InputStream to a non-blocking ReadableByteChannel. The InputStream must already be Open.
  *
  *  An internal FIFO queue reads and stages the data from the InputStream on a separate thread.
+ *  When the queue reaches the high-water mark the thread is parked, and read(...) un-parks it as soon as the
+ *  queue has been drained to the low-water mark.
  *
- *  NOTE: The caller should be prepared for 'read' returning 0 bytes since it does not block.
+ *  Optionally a ByteRing may be used instead of the queue - the InputStream is then read directly into the ring
+ *  and nothing is allocated per read. Otherwise the queue buffers come from the shared BufferPool, and are
+ *  returned to it once read(...) has consumed them.
+ *
+ *  The size of each InputStream read may adapt between a min and max - see setReadSizeRange.
+ *
+ *  In framing mode (see framed(...)) the stream is a sequence of length-prefixed messages. The thread reads the stream
+ *  in blocks and slices each message out into its own array, and readFrame() returns one complete message at a time.
+ *
+ *  NOTE: The caller should be prepared for 'read' returning 0 bytes since it does not block - unless setBlocking(true)
  **/
-public class InputStreamToChannel extends InOutCommon implements ReadableByteChannel, Runnable {
+public class InputStreamToChannel extends InOutCommon implements ScatteringByteChannel, Runnable {
+
+  private static final long maxParkNanos = 1_000_000_000L;   // Safety net only, read(...) and the MemoryBudget un-park the thread
 
-  private InputStream strm;
-  private int         maxInFlight;
-  private int         rdBfrSz;
-  private int         sleepStep;
-  private int         sleepMax;
-  private boolean     sleepByDoubling;
+  private InputStream       strm;
+  private volatile int      highWater;
+  private volatile int      lowWater;
+  private volatile boolean  pumpWaiting = false;              // True while the thread is parked waiting for read(...)
+  private final WaitStrategy parkForSpace = n -> LockSupport.parkNanos(this, maxParkNanos);   // Default at highWater
+  private int               rdBfrSz;
+  private volatile int      minRdSz;                          // Bounds of the adaptive read size - equal == fixed size
+  private volatile int      maxRdSz;
+  private volatile int      rdSz;                             // Size of the next InputStream read
+  private int               sleepStep;
+  private int               sleepMax;
+  private boolean           sleepByDoubling;
+  private int               prefixBytes;                      // Framing mode - width of the length prefix, 0 == off
+  private ByteOrder         prefixOrder;
+  private int               maxFrameSz;
+  private byte[]            frmBfr;                           // Framing mode - the block read from the InputStream
+  private int               frmPos;                           //   start of the data not yet sliced into frames
+  private int               frmEnd;                           //   end of the data read into frmBfr
 
   /** CONSTRUCTOR - all parameters specified
    *
    * @param label           - caller assigned label for this Channel
    * @param strm            - the InputStream to read
-   * @param maxInFlight     - max data to hold in the Q. If exceeded, pause reading the InputStream
+   * @param maxInFlight     - max data to hold in the Q (the high-water mark). If reached, pause reading the InputStream
+   *                          until read(...) drains the Q to the low-water mark - maxInFlight / 2, see setWatermarks
    *                          0 == no max (not recommended)
    * @param rdBfrSz         - Size of the input buffer used to read the InputStream
-   * @param sleepStep       - Parameters for the Delay, used if have exceeded maxInFlight in the Q. See Delay
+   * @param sleepStep       - Parameters for the Delay, used if the InputStream returns 0 bytes. See Delay
    * @param sleepMax        - Ditto
    * @param sleepByDoubling - Ditto
+   * @param ringStaging     - True == stage the data in a ByteRing of maxInFlight (rounded up to a power of 2) bytes
+   *                          instead of a queue of byte[]. Requires maxInFlight > 0.
+   * @param threadFactory   - creates the thread which reads the InputStream, null == the default - see PumpThreads
    */
-  public InputStreamToChannel(String label, InputStream strm, int maxInFlight, int rdBfrSz, int sleepStep, int sleepMax, boolean sleepByDoubling) {
+  public InputStreamToChannel(String label, InputStream strm, int maxInFlight, int rdBfrSz, int sleepStep, int sleepMax, boolean sleepByDoubling,
+                              boolean ringStaging, ThreadFactory threadFactory) {
+    this(label, strm, maxInFlight, rdBfrSz, sleepStep, sleepMax, sleepByDoubling, ringStaging, threadFactory, 0, null, 0);
+  }
+  /** Constructor with everything, including the framing mode - which must be set before the thread starts */
+  private InputStreamToChannel(String label, InputStream strm, int maxInFlight, int rdBfrSz, int sleepStep, int sleepMax, boolean sleepByDoubling,
+                               boolean ringStaging, ThreadFactory threadFactory, int prefixBytes, ByteOrder prefixOrder, int maxFrameSz) {
+    if(ringStaging && maxInFlight <= 0) throw new IllegalArgumentException("maxInFlight must be > 0 to use a ByteRing");
+
     this.label            = label;
     this.strm             = strm;
-    this.maxInFlight      = maxInFlight;
+    this.highWater        = maxInFlight;
+    this.lowWater         = maxInFlight / 2;
     this.rdBfrSz          = rdBfrSz;
+    this.minRdSz          = rdBfrSz;
+    this.maxRdSz          = rdBfrSz;
+    this.rdSz             = rdBfrSz;
     this.sleepStep        = sleepStep;
     this.sleepMax         = sleepMax;
     this.sleepByDoubling  = sleepByDoubling;
+    this.ring             = ringStaging ? new ByteRing(maxInFlight) : null;
+    this.prefixBytes      = prefixBytes;
+    this.prefixOrder      = prefixOrder;
+    this.maxFrameSz       = maxFrameSz;
 
-    thrd                  = new Thread(this);
-    thrd.start();
+    startThread(this, threadFactory);
+  }
+  /** Constructor with all parameters except ringStaging - uses the queue */
+  public InputStreamToChannel(String label, InputStream strm, int maxInFlight, int rdBfrSz, int sleepStep, int sleepMax, boolean sleepByDoubling,
+                              ThreadFactory threadFactory) {
+    this(label, strm, maxInFlight, rdBfrSz, sleepStep, sleepMax, sleepByDoubling, false, threadFactory);
+  }
+  /** Constructor with all parameters except the ThreadFactory - uses the default */
+  public InputStreamToChannel(String label, InputStream strm, int maxInFlight, int rdBfrSz, int sleepStep, int sleepMax, boolean sleepByDoubling) {
+    this(label, strm, maxInFlight, rdBfrSz, sleepStep, sleepMax, sleepByDoubling, null);
   }
   /** Constructor with InputStream and maxInFlight - default Delay settings */
   public InputStreamToChannel(String label, InputStream strm, int maxInFlight, int rdBfrSz) {
@@ -54,33 +112,113 @@ public class InputStreamToChannel extends InOutCommon implements ReadableByteCha
     this(label, strm, 4096, 1024);
   }
 
+  /** A channel in framing mode - the InputStream holds messages, each preceded by its length (not including the
+   *  prefix itself) as an unsigned integer of 'prefixBytes' bytes. Read the messages with readFrame(), the
+   *  read(...) methods may not be used. Each message is staged whole, so maxInFlight may be exceeded by one message.
+   *  Each message counts as its length plus the prefix against maxInFlight, so empty messages are bounded too.
+   *
+   * @param prefixBytes   - width of the length prefix - 1, 2, 3 or 4 bytes
+   * @param prefixOrder   - byte order of the length prefix
+   * @param maxFrameSize  - a longer message is an IOException, which ends the channel like any other
+   */
+  public static InputStreamToChannel framed(String label, InputStream strm, int maxInFlight, int prefixBytes, ByteOrder prefixOrder,
+                                            int maxFrameSize) {
+    if(prefixBytes < 1 || prefixBytes > 4) throw new IllegalArgumentException("prefixBytes must be 1 to 4, got " + prefixBytes);
+    if(maxFrameSize < 0) throw new IllegalArgumentException("maxFrameSize must be >= 0");
+    Objects.requireNonNull(prefixOrder, "prefixOrder");
+    return new InputStreamToChannel(label, strm, maxInFlight, 1024, 8, 256, true, false, null, prefixBytes, prefixOrder, maxFrameSize);
+  }
+
   public String getLabel()            { return label; }
   /** Return the original InputStream */
   public InputStream getInputStream() { return strm; }
   public boolean hadError()           { return ex != null; }
   public Exception getException()     { return ex; }
 
+  public boolean isFramed()           { return prefixBytes > 0; }
+
+  public int getHighWater()           { return highWater; }
+  public int getLowWater()            { return lowWater; }
+
+  /** Set the high and low water marks for the Q.
+   *
+   * @param highWater - stop reading the InputStream when this much data is staged. 0 == no max (not recommended)
+   * @param lowWater  - resume reading when read(...) has drained the Q to this amount. Must be < highWater.
+   */
+  public void setWatermarks(int highWater, int lowWater) {
+    if(highWater < 0) throw new IllegalArgumentException("highWater must be >= 0");
+    if(lowWater < 0 || (highWater > 0 && lowWater >= highWater)) throw new IllegalArgumentException("lowWater must be >= 0 and < highWater");
+
+    this.lowWater  = lowWater;
+    this.highWater = highWater;
+    wakePump();
+  }
+
+  /** Let the size of each InputStream read adapt between minSize and maxSize. It grows towards the larger of
+   *  InputStream.available() and twice the last read while reads fill the buffer, and shrinks while they are short
+   *  - so a bulk transfer uses large reads, and a trickling stream uses small buffers.
+   *  Equal sizes (the default, both rdBfrSz) == a fixed read size, and available() is not called.
+   */
+  public void setReadSizeRange(int minSize, int maxSize) {
+    if(minSize <= 0) throw new IllegalArgumentException("minSize must be > 0");
+    if(maxSize < minSize) throw new IllegalArgumentException("maxSize must be >= minSize");
+    this.minRdSz  = minSize;
+    this.maxRdSz  = maxSize;
+  }
+  public int getMinReadSize()     { return minRdSz; }
+  public int getMaxReadSize()     { return maxRdSz; }
+  /** The size of the next InputStream read */
+  public int getReadSize()        { return rdSz; }
+
   public boolean isOpen() {
     return thrd!=null;
   }
 
   public void close() throws IOException {
-    if(thrd != null) {
+    Thread t = thrd;
+    if(t != null) {
       strm.close();
       thrd = null;
       inFlight.set(-1);
+      LockSupport.unpark(t);
+      signalState();
     }
+    leaveBudget();
+    unregisterMBean();
+  }
+
+  /** True if a read(...) would not return 0 - i.e. there is data staged, or at EOF, or had an Exception */
+  public boolean isReadable() {
+    return thrd == null || ex != null || inFlight.get() > 0;
+  }
+
+  /** Wait until isReadable() - data is staged, or at EOF, or had an Exception
+   *  @return true if readable, false if the timeout expired first
+   */
+  public boolean awaitReadable(long timeout, TimeUnit unit) throws InterruptedException {
+    return awaitState(this::isReadable, unit.toNanos(timeout));
   }
 
   /** Read into the ByteBuffer and return the amount of data read, -1 if EOF.
    *
-   * NOTE: Will return ZERO bytes read if no data is available and caller should handle.
+   * NOTE: Will return ZERO bytes read if no data is available and caller should handle - unless in blocking mode
+   *       (see setBlocking) in which case it waits until there is some data, EOF or an Exception.
    */
   public int read(ByteBuffer bb) throws IOException {
+    int n = readNow(bb);
+    while(n == 0 && blocking && bb.hasRemaining()) {
+      awaitBlocking(this::isReadable);
+      n = readNow(bb);
+    }
+    return n;
+  }
+
+  private int readNow(ByteBuffer bb) throws IOException {
     if(bRdDtl){
       debugShowQueue("InputREAD", 99);
     }
 
+    throwIfFramed();
     throwIfEx();
 
     int avail = inFlight.get();
@@ -98,91 +236,382 @@ public class InputStreamToChannel extends InOutCommon implements ReadableByteCha
       // Read from Q and put out to the ByteBuffer - return number of bytes transferred, 0 if none
       if (bRdDtl) {
         if (!queue.isEmpty()) {
-          byte[] b = queue.peek();
-          debug("READ Before -- Peek: " + debugShowItem(0, b));
-          debug("READ Before -- Pos:" + bb.position() + ", Limit: " + bb.limit() + ", Want: " + want + ", Poll: " + b.length + ", Avail: " + inFlight.get() + ", QueueSz: " + queue.size());
+          Chunk c = queue.peek();
+          debug("READ Before -- Peek: " + debugShowItem(0, c));
+          debug("READ Before -- Pos:" + bb.position() + ", Limit: " + bb.limit() + ", Want: " + want + ", Poll: " + c.len + ", Avail: " + inFlight.get() + ", QueueSz: " + queue.size());
         }
       }
-      int amtRead = 0;
-      while (want > 0 && !queue.isEmpty()) {
-        byte[] bfrIn = queue.poll();
-        if (bRdDtl) {
-          debug("READ after POLL - " + debugShowItem(0, bfrIn));
-        }
-        if (bfrIn.length <= want) {
-          bb.put(bfrIn);
-          want -= bfrIn.length;
-          amtRead += bfrIn.length;
-        } else {
-          // First item in Q is larger than space left in the request buffer
-          // Copy 'want' bytes to output, make smaller byte[] and stick back on front of Q
-          bb.put(bfrIn, 0, want);
-          int remainAmt = bfrIn.length - want;
-          byte[] remains = new byte[remainAmt];
-          System.arraycopy(bfrIn, want, remains, 0, remainAmt);
-          queue.addFirst(remains);
-          if (bRdRmn) debugShowQueue(label, 128);
-          amtRead += want;
-          want = 0;
-        }
-      }
-      inFlight.addAndGet(-amtRead);
+      int amtRead = drainTo(bb);
+      consumed(amtRead);
       if (bRead) {
         if (amtRead != 0)
-          debug("READ After -- AmtRead: " + amtRead + " bytes, Avail: " + inFlight.get() + ", #Reads: " + numReads.get() + ", TtlData: " + dataRead.get());
+          debug("READ After -- AmtRead: " + amtRead + " bytes, Avail: " + inFlight.get() + ", #Reads: " + numReads.sum() + ", TtlData: " + dataRead.sum());
       }
       return amtRead;
     }
   }
 
+  /** Scattering read - fill dsts[offset] to dsts[offset + length - 1] in order, in a single pass over the Q.
+   *  Returns the total amount of data read, -1 if EOF. May return ZERO, like read(ByteBuffer).
+   */
+  public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    Objects.checkFromIndexSize(offset, length, dsts.length);
+    long n = readNow(dsts, offset, length);
+    while(n == 0 && blocking && hasRemaining(dsts, offset, length)) {
+      awaitBlocking(this::isReadable);
+      n = readNow(dsts, offset, length);
+    }
+    return n;
+  }
+
+  private long readNow(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    throwIfFramed();
+    throwIfEx();
+
+    int avail = inFlight.get();
+    if(thrd==null && avail <= 0) {      // Closed the thread and no more data in flight
+      inFlight.set(-1);
+      return -1;              // EOF
+    }
+    int amtRead = 0;
+    for(int i=offset; i<offset + length && !isStagingEmpty(); i++) {
+      synchronized(dsts[i]) { amtRead += drainTo(dsts[i]); }
+    }
+    consumed(amtRead);
+    if (bRead) {
+      if (amtRead != 0)
+        debug("SCATTER READ After -- AmtRead: " + amtRead + " bytes, Avail: " + inFlight.get());
+    }
+    return amtRead;
+  }
+
+  public long read(ByteBuffer[] dsts) throws IOException {
+    return read(dsts, 0, dsts.length);
+  }
+
+  private static boolean hasRemaining(ByteBuffer[] bfrs, int offset, int length) {
+    for(int i=offset; i<offset + length; i++) if(bfrs[i].hasRemaining()) return true;
+    return false;
+  }
+
+  /** Framing mode - return the next complete message, owned by the caller, or null if none is staged yet.
+   *  At EOF also returns null, and inFlight() is then < 0.
+   *
+   *  NOTE: In blocking mode (see setBlocking) waits until there is a message, EOF or an Exception.
+   */
+  public ByteBuffer readFrame() throws IOException {
+    if(prefixBytes == 0) throw new IllegalStateException("Not in framing mode - see InputStreamToChannel.framed");
+    while(true) {
+      boolean    eof   = thrd == null;      // Checked before the poll, so a frame staged just before EOF is not lost
+      ByteBuffer frame = pollFrame(eof);
+      if(frame != null || eof || !blocking) return frame;
+      awaitBlocking(this::isReadable);
+    }
+  }
+
+  /** The frames staged before an Exception are returned first - it is thrown once there are none left */
+  private ByteBuffer pollFrame(boolean eof) throws IOException {
+    if(inFlight.get() < 0) return null;     // Closed, or already returned EOF
+    Chunk chunk;
+    synchronized(queue) { chunk = queue.poll(); }
+    if(chunk == null) {
+      throwIfEx();
+      if(eof) inFlight.set(-1);
+      return null;
+    }
+    residency.record(System.nanoTime() - chunk.staged);
+    consumed(prefixBytes + chunk.len);      // As charged by stageFrame
+    return ByteBuffer.wrap(chunk.data, chunk.off, chunk.len);
+  }
+
+  /** Relay - hand the Chunks at the head of the Q to 'out' for as long as it accepts them, without copying the data
+   *  (see StreamRelay). If 'out' takes only part of a Chunk (its ring is smaller) the rest stays at the head of the Q.
+   *  Returns the number of bytes handed over, 0 if none, -1 if EOF.
+   *  NOTE: The queue only - not ring staging or framing mode.
+   */
+  int relayTo(OutputStreamToChannel out) throws IOException {
+    if(ring != null || prefixBytes > 0) throw new IllegalStateException("Relay needs queue staging, without framing");
+    throwIfEx();
+
+    if(thrd==null && inFlight.get() <= 0) {      // Closed the thread and no more data in flight
+      inFlight.set(-1);
+      return -1;              // EOF
+    }
+    int moved = 0;
+    synchronized(queue) {                        // Only a single consumer may take from the head of the Q
+      Chunk chunk;
+      int   n;
+      while((chunk = queue.peek()) != null && (n = out.acceptRelayed(chunk)) > 0) {
+        moved += n;
+        if(!chunk.consume(n)) break;             // Part taken - the rest once 'out' has room
+        queue.poll();
+        residency.record(System.nanoTime() - chunk.staged);
+      }
+    }
+    consumed(moved);
+    return moved;
+  }
+
+  private void throwIfFramed() {
+    if(prefixBytes > 0) throw new IllegalStateException("Framing mode - use readFrame()");
+  }
+
+  /** Move staged data from the Q (or ring) into the ByteBuffer - return number of bytes transferred, 0 if none */
+  private int drainTo(ByteBuffer bb) {
+    int want    = bb.remaining();
+    int amtRead = 0;
+    if (ring != null) {
+      synchronized(ring) { amtRead = ring.get(bb); }     // Only a single consumer may use the ring
+    } else synchronized(queue) {                          // Only a single consumer may take from the head of the Q
+      while (want > 0 && !queue.isEmpty()) {
+        Chunk chunk = queue.peek();
+        if (bRdDtl) {
+          debug("READ after PEEK - " + debugShowItem(0, chunk));
+        }
+        int amt = Math.min(chunk.len, want);
+        bb.put(chunk.data, chunk.off, amt);
+        want    -= amt;
+        amtRead += amt;
+        // If the first item in the Q is larger than the space left in the request buffer, just advance its offset
+        if (chunk.consume(amt)) {
+          queue.poll();
+          residency.record(System.nanoTime() - chunk.staged);
+          pool.release(chunk.data);
+        } else if (bRdRmn) debugShowQueue(label, 128);
+      }
+    }
+    return amtRead;
+  }
+
+  /** Account for data taken by the caller, and resume the thread if the Q has drained to the lowWater mark */
+  private void consumed(int amtRead) {
+    unreserve(amtRead);
+    int left = inFlight.addAndGet(-amtRead);
+    if (pumpWaiting && left <= lowWater) wakePump();
+  }
+
   public void run() {
     if(bThread) debug("STARTED thread");
-    byte[] bfr    = new byte[rdBfrSz];
+    byte[] bfr    = ring == null && prefixBytes == 0 ? pool.acquire(rdSz) : null;
     Delay  delay  = new Delay(sleepStep, sleepMax, sleepByDoubling);
+    int    idle   = 0;                   // Consecutive empty reads
+    if(prefixBytes > 0) frmBfr = new byte[Math.max(rdBfrSz, prefixBytes)];
 
-    // Read from the InputStream into the bfrRead array
+    // Read from the InputStream into the bfr array, or directly into the ring
     try {
       while (thrd != null) {
-        if (maxInFlight > 0 && inFlight.get() >= maxInFlight)
-          delay.delay();
+        int high = highWater;
+        if ((high > 0 && inFlight.get() >= high) || (ring != null && ring.free() == 0))
+          waitForSpace();
+        else if (prefixBytes > 0)
+          stageFrame(delay);
         else {
-          int n = strm.read(bfr);               // May block
+          int want = reserve(readSize(high));   // Limited by the MemoryBudget, if any
+          if(want == 0) {
+            waitForBudget(1);                 // Any part of a read will do
+            continue;
+          }
+          if(ring == null && bfr.length < want) {
+            pool.release(bfr);
+            bfr = pool.acquire(want);
+          }
+          int n = ring == null ? strm.read(bfr, 0, want) : ring.readFrom(strm, want);    // May block
           if(bWrtDtl) debug("In THREAD, read " + n + " bytes");
+          if(n < want) unreserve(want - Math.max(n, 0));
           if(n == -1) {
-            close();
+            endOfStream();
             if(bWrtDtl) debug("CLOSED");
           } else if(n > 0){
-            if(n == bfr.length) {
-              synchronized(bfr) {             // The queue is OK, but need to sync for data within the buffer
-                queue.add(bfr);
-              }
-              bfr = new byte[rdBfrSz];
+            if(ring != null) {
+              // Already staged in the ring
+            } else if(n > want / 2) {
+              queue.add(new Chunk(bfr, 0, n));
+              bfr = pool.acquire(want);
             } else {
-              byte[] cpy = Arrays.copyOfRange(bfr, 0, n);
-              if(bWrtDtl) debug("ADDING TO Q: " + debugShowItem(-1, cpy));
-              synchronized(cpy){ queue.add(cpy); }
+              // Short read - copy to a smaller pooled buffer so the Q does not hold mostly empty buffers
+              Chunk chunk = new Chunk(pool.acquire(n), 0, n);
+              System.arraycopy(bfr, 0, chunk.data, 0, n);
+              if(bWrtDtl) debug("ADDING TO Q: " + debugShowItem(-1, chunk));
+              queue.add(chunk);
             }
             inFlight.addAndGet(n);
-            numReads.incrementAndGet();
-            dataRead.addAndGet(n);
+            numReads.increment();
+            dataRead.add(n);
+            chunkSizes.record(n);
+            adaptReadSize(want, n);
 
             if(bWrtDtl){
               debugShowQueue("   Thrd", 99);
             }
-            delay.reset();
-          } else
-            delay.delay();
+            signalState();
+            idle = 0;
+          } else {
+            pause(++idle, delay);
+          }
         }
       }
     } catch (Exception e) {
       thrd = null;
       ex = e;
+      signalState();
       if(bThread) {
         debug("ENDING thread - Ex: " + e.toString());
         e.printStackTrace();
       }
     }
+    if(bfr != null) pool.release(bfr);
     if(bThread) debug("Thread ENDED -----");
   }
+
+  /** Framing mode - slice one length prefix and then its whole message out of the block read from the InputStream,
+   *  and stage the message as a single Chunk. It is charged with the prefix too, so empty messages fill the Q as well.
+   */
+  private void stageFrame(Delay delay) throws IOException {
+    if(!fillFrames(prefixBytes, delay, true)) {
+      endOfStream();
+      return;
+    }
+    long len = 0;
+    for(int i=0; i<prefixBytes; i++)
+      len = (len << 8) | (frmBfr[frmPos + (prefixOrder == ByteOrder.BIG_ENDIAN ? i : prefixBytes - 1 - i)] & 0xFF);
+    if(len > maxFrameSz) throw new IOException("Frame of " + len + " bytes is larger than the max of " + maxFrameSz + " on " + label);
+    frmPos += prefixBytes;
+
+    int n = (int) len;
+    reserveFrame(prefixBytes + n);
+    byte[] frame = new byte[n];             // Owned by the caller of readFrame(), so not from the pool
+    int    have  = Math.min(n, frmEnd - frmPos);
+    System.arraycopy(frmBfr, frmPos, frame, 0, have);
+    frmPos += have;
+    if(n - have >= frmBfr.length) {
+      readFully(frame, have, delay);        // A large rest goes straight into the frame
+    } else if(have < n) {
+      fillFrames(n - have, delay, false);
+      System.arraycopy(frmBfr, frmPos, frame, have, n - have);
+      frmPos += n - have;
+    }
+    queue.add(new Chunk(frame, 0, n));
+    inFlight.addAndGet(prefixBytes + n);
+    numReads.increment();
+    dataRead.add(prefixBytes + n);
+    chunkSizes.record(n);
+    signalState();
+  }
+
+  /** Framing mode - read blocks until at least 'need' bytes are in frmBfr. Returns false at EOF with nothing left
+   *  if 'eofOk', else EOF is an EOFException.
+   */
+  private boolean fillFrames(int need, Delay delay, boolean eofOk) throws IOException {
+    if(frmEnd - frmPos >= need) return true;
+    System.arraycopy(frmBfr, frmPos, frmBfr, 0, frmEnd - frmPos);
+    frmEnd -= frmPos;
+    frmPos  = 0;
+    int idle = 0;
+    while(frmEnd < need) {
+      int n = strm.read(frmBfr, frmEnd, frmBfr.length - frmEnd);     // May block
+      if(n < 0) {
+        if(eofOk && frmEnd == 0) return false;
+        throw new EOFException("EOF within a frame on " + label);
+      }
+      if(n > 0) {
+        frmEnd += n;
+        idle    = 0;
+      } else pause(++idle, delay);
+    }
+    return true;
+  }
+
+  /** Fill 'b' from 'pos' straight from the InputStream - EOF is an EOFException */
+  private void readFully(byte[] b, int pos, Delay delay) throws IOException {
+    int idle = 0;
+    while(pos < b.length) {
+      int n = strm.read(b, pos, b.length - pos);     // May block
+      if(n < 0) throw new EOFException("EOF within a frame on " + label);
+      if(n > 0) {
+        pos += n;
+        idle = 0;
+      } else pause(++idle, delay);
+    }
+  }
+
+  /** The InputStream returned 0 bytes - idle per the WaitStrategy if set, else the Delay */
+  private void pause(int idle, Delay delay) {
+    long         t0       = System.nanoTime();
+    WaitStrategy strategy = waitStrategy;
+    (strategy != null ? strategy : delay).idle(idle);
+    stalled(t0);
+  }
+
+  /** Reserve a whole frame from the MemoryBudget. One larger than the fair share may never fit, so if this channel
+   *  holds nothing it is taken over the budget rather than stalling forever.
+   */
+  private void reserveFrame(int n) {
+    MemoryBudget b = budget;
+    while(b != null && thrd != null && !reserveAll(n)) {
+      if(budgetHeld.get() == 0 && n > b.getFairShare()) {
+        reserveOver(n);
+        return;
+      }
+      waitForBudget(n);
+      b = budget;
+    }
+  }
+
+  /** Size of the next read - rdSz, or more if available() says more is waiting, within the min / max. No more than
+   *  the room left below 'high' (if > 0), so a read does not overshoot the high-water mark - but at least the min.
+   */
+  private int readSize(int high) throws IOException {
+    int min = minRdSz, max = maxRdSz;
+    int size = min == max ? min : Math.max(min, Math.min(max, Math.max(rdSz, strm.available())));
+    return high > 0 ? Math.min(size, Math.max(min, high - inFlight.get())) : size;
+  }
+
+  /** Double the read size after a read of rdSz or more, halve it after a short read under a quarter of rdSz. A read
+   *  cut down to 'want' by the high-water mark or the MemoryBudget which filled it leaves the size as is.
+   */
+  private void adaptReadSize(int want, int n) {
+    int min = minRdSz, max = maxRdSz;
+    if(min == max) return;
+    int next = n >= rdSz ? (int) Math.min((long) rdSz * 2, max) : n < want && n < rdSz / 4 ? rdSz / 2 : rdSz;
+    rdSz = Math.max(min, Math.min(max, next));
+  }
+
+  /** EOF on the InputStream - close it, but leave any staged data for read(...) which then returns -1 */
+  private void endOfStream() throws IOException {
+    thrd = null;
+    try {
+      strm.close();
+    } finally {
+      signalState();
+    }
+  }
+
+  /** Park the thread until read(...) has drained the Q to the lowWater mark, or closed */
+  private void waitForSpace() {
+    long t0 = System.nanoTime();
+    rejections.increment();
+    pumpWaiting = true;
+    try {
+      idleUntil(() -> inFlight.get() <= lowWater, parkForSpace);
+    } finally {
+      pumpWaiting = false;
+      stalled(t0);
+    }
+  }
+
+  /** Wait until the MemoryBudget could grant 'need' bytes - a release by any channel sharing it un-parks the thread */
+  private void waitForBudget(int need) {
+    MemoryBudget b = budget;
+    if(b == null) return;
+    long t0 = System.nanoTime();
+    rejections.increment();
+    b.awaitRelease(() -> reservable(need) >= need || budget != b || thrd == null, maxParkNanos);
+    stalled(t0);
+  }
+
+  private void wakePump() {
+    Thread t = thrd;
+    if(t != null) LockSupport.unpark(t);
+  }
 }
 
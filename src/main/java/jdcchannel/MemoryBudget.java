@@ -0,0 +1,118 @@
+package jdcchannel;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/** A cap on the bytes staged by all the channels which share it - see InOutCommon.setMemoryBudget.
+ *
+ *  A channel reserves from the budget before it stages data, and releases once the data is consumed (or written).
+ *  The rules for how much a channel holding 'held' bytes may reserve:
+ *  - up to minShare is always granted, so every channel can make progress - the total may then exceed the
+ *    capacity by at most minShare per channel
+ *  - while under half of the capacity is used, any channel may take what is free
+ *  - above that, a channel may only grow to its fair share - capacity / number of channels
+ *
+ *  A reservation may be granted in part - InputStreamToChannel then reads less, OutputStreamToChannel accepts less.
+ *  A channel which is granted nothing parks in awaitRelease until another channel releases some.
+ */
+public class MemoryBudget implements MemoryBudgetMBean {
+
+  private final long          capacity;
+  private final int           minShare;
+  private final AtomicLong    used      = new AtomicLong(0);
+  private final AtomicInteger channels  = new AtomicInteger(0);
+  private final LongAdder     denied    = new LongAdder();
+  private final Set<Thread>   waiting   = ConcurrentHashMap.newKeySet();    // Parked in awaitRelease
+
+  /**
+   * @param capacity  - max bytes staged by all the channels, apart from the minShare guarantee
+   * @param minShare  - bytes each channel may always hold - should be at least the largest single read or write
+   */
+  public MemoryBudget(long capacity, int minShare) {
+    if(minShare <= 0) throw new IllegalArgumentException("minShare must be > 0");
+    if(capacity < minShare) throw new IllegalArgumentException("capacity must be >= minShare");
+    this.capacity = capacity;
+    this.minShare = minShare;
+  }
+
+  public long getCapacity()       { return capacity; }
+  public int  getMinShare()       { return minShare; }
+  public long getUsed()           { return used.get(); }
+  public int  getChannels()       { return channels.get(); }
+  public long getDenied()         { return denied.sum(); }
+  public long getFairShare()      { return Math.max(minShare, capacity / Math.max(1, channels.get())); }
+  public int  getPressurePercent() { return (int) Math.min(100, used.get() * 100 / capacity); }
+
+  /** Publish as a JMX MBean named jdcchannel:type=MemoryBudget,name="name" */
+  public ObjectName registerMBean(String name) throws JMException {
+    ObjectName oName = new ObjectName("jdcchannel:type=MemoryBudget,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, oName);
+    return oName;
+  }
+
+  void join()   { channels.incrementAndGet(); }
+  void leave()  { channels.decrementAndGet(); wakeWaiters(); }     // The fair share grows
+
+  /** How much of 'want' bytes a channel holding 'held' bytes could reserve now */
+  int available(int want, long held) {
+    return available(want, held, used.get());
+  }
+
+  private int available(int want, long held, long u) {
+    long guar  = Math.max(0, minShare - held);
+    long share = u < capacity / 2 ? capacity - u : Math.min(capacity - u, getFairShare() - held);
+    return (int) Math.max(0, Math.min(want, Math.max(guar, share)));
+  }
+
+  /** Reserve up to 'want' bytes for a channel holding 'held' - returns the amount granted, may be 0 */
+  int reserve(int want, long held) {
+    while(true) {
+      long u = used.get();
+      int  n = available(want, held, u);
+      if(n == 0 || used.compareAndSet(u, u + n)) {
+        if(n < want) denied.increment();
+        return n;
+      }
+    }
+  }
+
+  /** Reserve 'amount' bytes regardless of the capacity - counted as a denial, since it overcommits */
+  void force(long amount) {
+    used.addAndGet(amount);
+    denied.increment();
+  }
+
+  void release(long amount) {
+    if(amount <= 0) return;
+    used.addAndGet(-amount);
+    wakeWaiters();
+  }
+
+  /** Park the calling thread until 'ready' - checked again each time bytes are released - or for at most 'maxNanos' */
+  void awaitRelease(BooleanSupplier ready, long maxNanos) {
+    Thread t = Thread.currentThread();
+    waiting.add(t);
+    try {
+      if(!ready.getAsBoolean()) LockSupport.parkNanos(this, maxNanos);    // A release after the check un-parks at once
+    } finally {
+      waiting.remove(t);
+    }
+  }
+
+  private void wakeWaiters() {
+    if(waiting.isEmpty()) return;
+    for(Thread t : waiting) LockSupport.unpark(t);
+  }
+
+  public String toString() {
+    return "MemoryBudget[used=" + getUsed() + " of " + capacity + ", channels=" + getChannels() + ", denied=" + getDenied() + "]";
+  }
+}
@@ -0,0 +1,13 @@
+package jdcchannel;
+
+/** JMX view of a MemoryBudget */
+public interface MemoryBudgetMBean {
+  long  getCapacity();
+  long  getUsed();
+  int   getChannels();
+  long  getFairShare();
+  /** Reservations granted less than was asked for, since created */
+  long  getDenied();
+  /** Used as a percentage of the capacity */
+  int   getPressurePercent();
+}
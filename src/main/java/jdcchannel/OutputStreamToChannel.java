@@ -1,51 +1,126 @@
 package jdcchannel;
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedChannelException;
-import java.nio.channels.WritableByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Path;
+import java.io.InterruptedIOException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.LockSupport;
 
 /** Converts an OutputStream to a non-blocking WritableByteChannel.
  *
  * An internal FIFO queue is used to store data written by the caller, and a separate
  * thread then writes it to the OutputStream.
  *
- * The write(ByteBuffer src) may return a 0 - no bytes written - if the internal buffer fills
- * faster than it can be written to the OutputStream. The caller must handle this situation.
+ * The thread is parked while the queue is empty and write(ByteBuffer src) un-parks it, optionally after a
+ * short spin phase - see setSpinCount.
+ *
+ * Optionally a ByteRing may be used instead of the queue - write(...) copies into the ring, and the thread writes
+ * to the OutputStream directly from the ring, so nothing is allocated per write. Otherwise the queue buffers come
+ * from the shared BufferPool, and are returned to it once written to the OutputStream.
+ *
+ * writeOwned(...) takes over the caller's buffer instead of copying it - the thread writes straight from it, then
+ * hands it back through a callback.
+ *
+ * Small writes may be held back for a linger time, so more of them are combined into one OutputStream write - see
+ * setLinger. flush() forces out everything written so far, and flushes the OutputStream.
+ *
+ * closeAsync() closes once the thread has sent everything written so far, without the caller waiting - close() waits
+ * for it. abort() discards what is not sent yet, and closes at once.
+ *
+ * Optionally the data which does not fit below maxInFlight is spilled to a memory-mapped SpillFile instead - see
+ * setSpill. The thread sends the queued data first, then the spilled data, so the order is kept.
+ *
+ * Like any WritableByteChannel, write(ByteBuffer src) accepts as much of the data as fits below maxInFlight, and may
+ * return 0 - no bytes written - if the internal buffer fills faster than it can be written to the OutputStream. The
+ * caller must handle this situation.
  *
  */
-public class OutputStreamToChannel extends InOutCommon implements WritableByteChannel, Runnable {
+public class OutputStreamToChannel extends InOutCommon implements GatheringByteChannel, Flushable, Runnable {
 
-  private OutputStream  strm;
-  private int           maxInFlight;
-  private int           maxWriteSz;
-  private int           sleepStep;
-  private int           sleepMax;
-  private boolean       sleepByDoubling;
+  private static final long maxParkNanos = 1_000_000_000L;   // Safety net only, write(...) un-parks the thread
+
+  private OutputStream      strm;
+  private int               maxInFlight;
+  private int               maxWriteSz;
+  private int               sleepStep;
+  private int               sleepMax;
+  private boolean           sleepByDoubling;
+  private volatile int      spinCount     = 0;                // Times to spin on an empty queue before parking
+  private volatile boolean  writerWaiting = false;            // True while the thread is parked waiting for write(...)
+  private volatile long     lingerNanos   = 0;                // Max time to hold back data below lingerBytes, 0 == none
+  private volatile int      lingerBytes   = 0;
+  private volatile boolean  flushEachBatch= false;            // True == flush the OutputStream after each write to it
+  private volatile long     ringStaged    = 0;                // When the ring last went from empty to non-empty
+  private final LongAdder   dataAccepted  = new LongAdder();  // Total data taken from write(...)
+  private final AtomicLong  flushTarget   = new AtomicLong(0);  // Bytes to send before flushing - the highest asked by flush()
+  private volatile long     flushDone     = -1;               // dataWrtn as of the last OutputStream flush, -1 == none yet
+  private volatile boolean  closing       = false;            // Set by closeAsync(), or abort()
+  private final AtomicBoolean closeDone   = new AtomicBoolean(false);
+  private final AtomicInteger staging     = new AtomicInteger(0);   // Writes past the open check, not yet staged
+  private volatile Thread   writer        = null;             // The thread, once run() starts - thrd is nulled when closed
+  private volatile Thread   closer        = null;             // The thread running finishClose()
+  private volatile boolean  writerEnded   = false;            // Set as run() returns - until then only the thread takes from the queue
+  private final CompletableFuture<Void> closed = new CompletableFuture<>();   // Completed by finishClose()
+  private volatile SpillFile spill        = null;             // Overflow once the queue is full, null == none
+  private final WaitStrategy spinThenPark = n -> {            // Default WaitStrategy while the queue is empty
+    if(n <= spinCount) Thread.onSpinWait();
+    else LockSupport.parkNanos(this, maxParkNanos);
+  };
 
   /**
    *
    * @param strm          - The destination OutputStream
-   * @param maxInFlight   - Max data in flight, after this write(ByteBuffer) returns 0 bytes written. 0 == infinite (not recommended).
+   * @param maxInFlight   - Max data in flight, write(ByteBuffer) accepts only as much as fits below this. 0 == infinite (not recommended).
    * @param maxWriteSz    - Will accumulate existing buffers up to this limit before calling the OutputStream.
    *                        0 == none, send each write(ByteBuffer src) data as given.
-   *                        NOTE: If data longer than this is passed to write(...), then it will be sent as-is.
-   * @param sleepStep     - Params for the Delay - see the docs there.
+   *                        NOTE: If a chunk longer than this is accepted by write(...), then it will be sent as-is.
+   * @param sleepStep     - Params for the Delay - see the docs there. NOTE: No longer used, the thread parks
+   *                        while the queue is empty and is un-parked by write(...)
    * @param sleepMax      - Ditto
    * @param sleepDoubling - Ditto
+   * @param ringStaging   - True == stage the data in a ByteRing of maxInFlight (rounded up to a power of 2) bytes
+   *                        instead of a queue of byte[]. Requires maxInFlight > 0.
+   * @param threadFactory - creates the thread which writes the OutputStream, null == the default - see PumpThreads
    */
-  public OutputStreamToChannel(String label, OutputStream strm, int maxInFlight, int maxWriteSz, int sleepStep, int sleepMax, boolean sleepDoubling) {
+  public OutputStreamToChannel(String label, OutputStream strm, int maxInFlight, int maxWriteSz, int sleepStep, int sleepMax, boolean sleepDoubling,
+                               boolean ringStaging, ThreadFactory threadFactory) {
+    if(ringStaging && maxInFlight <= 0) throw new IllegalArgumentException("maxInFlight must be > 0 to use a ByteRing");
+
     this.label            = label;
     this.strm             = strm;
     this.maxInFlight      = maxInFlight;
     this.maxWriteSz       = maxWriteSz;
     this.sleepStep        = sleepStep;
     this.sleepMax         = sleepMax;
-    this.sleepByDoubling  = sleepByDoubling;
+    this.sleepByDoubling  = sleepDoubling;
+    this.ring             = ringStaging ? new ByteRing(maxInFlight) : null;
 
-    thrd              = new Thread(this);
-    thrd.start();
+    startThread(this, threadFactory);
+  }
+  /** Constructor with all parameters except ringStaging - uses the queue */
+  public OutputStreamToChannel(String label, OutputStream strm, int maxInFlight, int maxWriteSz, int sleepStep, int sleepMax, boolean sleepDoubling,
+                               ThreadFactory threadFactory) {
+    this(label, strm, maxInFlight, maxWriteSz, sleepStep, sleepMax, sleepDoubling, false, threadFactory);
+  }
+  /** Constructor with all parameters except the ThreadFactory - uses the default */
+  public OutputStreamToChannel(String label, OutputStream strm, int maxInFlight, int maxWriteSz, int sleepStep, int sleepMax, boolean sleepDoubling) {
+    this(label, strm, maxInFlight, maxWriteSz, sleepStep, sleepMax, sleepDoubling, null);
   }
   /** Constructor with OutputStream and size of staging buffer */
   public OutputStreamToChannel(String label, OutputStream strm, int maxInFlight, int maxWriteSz) {
@@ -57,98 +132,721 @@ public class OutputStreamToChannel extends InOutCommon implements WritableByteCh
   }
 
   public OutputStream getOutputStream()   { return strm; }
-  public boolean isOpen()                 { return thrd != null; }
+  /** False once closeAsync() or abort() is called, even while the thread is still sending */
+  public boolean isOpen()                 { return thrd != null && !closing; }
   public boolean hadError()               { return ex != null; }
   public Exception getException()         { return ex; }
 
+  public int getSpinCount()               { return spinCount; }
+
+  /** Spill the data which does not fit below maxInFlight (or the MemoryBudget) to a memory-mapped file of up to
+   *  'maxBytes' - so write(...) only returns 0 once that is full too. While anything is spilled, new data is also
+   *  spilled, and the thread sends the spilled data after the queue. Spilled data is not counted in the
+   *  MemoryBudget, but is in inFlight(). The file is deleted by close() - after abort(), once the thread has ended.
+   *  NOTE: Only with the queue, not ring staging. May only be set once.
+   *
+   * @param dir         - directory for the file, null == the default temporary-file directory
+   * @param segmentSize - bytes mapped at a time, see SpillFile
+   */
+  public synchronized void setSpill(Path dir, long maxBytes, int segmentSize) throws IOException {
+    if(ring != null) throw new IllegalStateException("Spilling is not supported with ring staging");
+    if(spill != null) throw new IllegalStateException("Spill already set: " + spill);
+    spill = new SpillFile(dir, maxBytes, segmentSize);
+    signalState();                            // May be writable now
+  }
+  public void setSpill(Path dir, long maxBytes) throws IOException {
+    setSpill(dir, maxBytes, (int) Math.min(maxBytes, 64 << 20));
+  }
+  /** The SpillFile, null if none */
+  public SpillFile getSpill()             { return spill; }
+
+  /** Number of times the thread checks an empty queue (with Thread.onSpinWait) before it parks. Spinning lowers the
+   *  latency of a write(...) which arrives soon after the last one, at the cost of CPU. 0 == park immediately.
+   *  NOTE: Only applies to the default wait - not if a WaitStrategy is set, see setWaitStrategy.
+   */
+  public void setSpinCount(int spinCount) {
+    if(spinCount < 0) throw new IllegalArgumentException("spinCount must be >= 0");
+    this.spinCount = spinCount;
+  }
+
+  /** Hold back the staged data until at least 'bytes' are staged, or the oldest has waited 'micros' - so small
+   *  writes are combined into fewer OutputStream writes, at the cost of up to 'micros' latency. flush() and close()
+   *  send the data at once. 0 micros == send as soon as there is data (the default).
+   *  NOTE: Combining is limited to maxWriteSz - bytes > maxWriteSz only makes sense with the ring.
+   */
+  public void setLinger(long micros, int bytes) {
+    if(micros < 0) throw new IllegalArgumentException("micros must be >= 0");
+    if(bytes < 0) throw new IllegalArgumentException("bytes must be >= 0");
+    lingerBytes = bytes;
+    lingerNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+    wakeWriter();
+  }
+  public long getLingerMicros()           { return TimeUnit.NANOSECONDS.toMicros(lingerNanos); }
+  public int  getLingerBytes()            { return lingerBytes; }
+
+  /** True == flush() the OutputStream after each write to it, e.g. for a BufferedOutputStream. Default false. */
+  public void setFlushEachBatch(boolean flush)  { flushEachBatch = flush; }
+  public boolean isFlushEachBatch()             { return flushEachBatch; }
+
+  /** Send all the data written so far (ignoring any linger), flush the OutputStream, and wait until done.
+   *  Waits in either blocking or non-blocking mode - an interrupt throws InterruptedIOException.
+   *  @throws AsynchronousCloseException if the thread ended first (abort(), or an Exception already reported to
+   *          another caller - then the cause) before all of it was flushed
+   */
+  public void flush() throws IOException {
+    throwIfEx();
+    if(!isOpen()) throw new ClosedChannelException();
+    long target = dataAccepted.sum();         // Only what was written before this call - later writes do not hold it up
+    flushTarget.accumulateAndGet(target, Math::max);
+    wakeWriter();
+    awaitBlocking(() -> flushDone >= target || thrd == null || ex != null);
+    throwIfEx();
+    if(flushDone < target) {                  // The thread ended first, with the data still in flight
+      AsynchronousCloseException e = new AsynchronousCloseException();
+      if(ex != null) e.initCause(ex);
+      throw e;
+    }
+  }
+
+  /** Close once everything written so far has been sent - see closeAsync(). Waits in either blocking or non-blocking
+   *  mode, an interrupt throws InterruptedIOException.
+   *  NOTE: Called on the internal thread - e.g. from a state listener, or a completion of AsyncStreamChannel - it only
+   *        starts the close, as closeAsync() does, since waiting for the thread would deadlock. Likewise from a state
+   *        listener run while the close is being finished.
+   *  @throws IOException if some of the data could not be sent, or closing the OutputStream failed
+   */
   public void close() throws IOException  {
-    while(inFlight.get() > 0) try{ Thread.sleep(100); } catch( Exception e ) { }
-    strm.close();
+    Thread self = Thread.currentThread();
+    if((self == writer || self == closer) && !closed.isDone()) {
+      closeAsync();
+      return;
+    }
+    try {
+      closeAsync().get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while closing " + label);
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof IOException && cause != ex) throw (IOException) cause;
+      throw new IOException("Close failed on " + label, cause);   // Not the thread's own - write(...) may have thrown it
+    }
+  }
+
+  /** Start closing, and return at once - write(...) then throws ClosedChannelException, and the thread closes the
+   *  OutputStream as soon as it has sent (and flushed) everything written before, ignoring any linger.
+   *  A write(...) in progress on another thread either has its data sent before the close, or throws.
+   *  @return completes once closed - exceptionally if some of the data could not be sent, since the thread had an
+   *          Exception or abort() was called, or if closing the OutputStream failed. The same future on every call.
+   */
+  public CompletableFuture<Void> closeAsync() {
+    closing = true;                           // No linger
+    if(thrd == null) finishClose(null);       // The thread already ended - nothing will drain
+    else wakeWriter();
+    return closed;
+  }
+
+  /** closeAsync(), but abort() if not closed within the timeout - the future then completes with a TimeoutException */
+  public CompletableFuture<Void> closeAsync(long timeout, TimeUnit unit) {
+    CompletableFuture<Void> f = closeAsync();
+    if(!f.isDone()) {
+      CompletableFuture.delayedExecutor(timeout, unit).execute(() -> {
+        if(!f.isDone()) abort(new TimeoutException("Not drained within " + timeout + " " + unit + ", " + inFlight.get() + " bytes unsent on " + label));
+      });
+    }
+    return f;
+  }
+
+  /** Close at once, discarding the data not sent yet. The OutputStream is closed, which also ends a write blocked in
+   *  it if the stream supports that (e.g. a Socket). A pending closeAsync() completes exceptionally.
+   *  NOTE: The queued buffers are returned to the pool (or their owners) by the thread as it ends, not by this call.
+   */
+  public void abort() {
+    abort(new IOException("Aborted with " + inFlight.get() + " bytes unsent on " + label));
+  }
+
+  private void abort(Exception cause) {
+    closing = true;
+    finishClose(inFlight.get() > 0 ? cause : null);     // Nothing lost if it had all been sent
+  }
+
+  /** Close the OutputStream and release everything - once only, by the thread when drained, or by closeAsync() if
+   *  the thread already ended, or by abort(). 'failure' != null == the data was not all sent.
+   */
+  private void finishClose(Exception failure) {
+    if(!closeDone.compareAndSet(false, true)) return;
+    closer = Thread.currentThread();
+    Exception err = failure != null ? failure : ex;
+    try {
+      strm.close();
+    } catch(IOException e) {
+      if(err == null) err = e;
+    }
+    Thread t = thrd;
     thrd = null;
+    if(t != null && t != Thread.currentThread()) LockSupport.unpark(t);
+    discardIfEnded();                         // Only if not drained - else the thread discards it as it ends
+    if(writerEnded || Thread.currentThread() == writer) try {
+      closeSpill();                           // Else the thread closes it as it ends, since it may be sending from it
+    } catch(IOException e) {
+      if(err == null) err = e;
+    }
+    signalState();
+    leaveBudget();
+    unregisterMBean();
+    if(err == null) closed.complete(null);
+    else            closed.completeExceptionally(err);
+  }
+
+  /** True if a write(...) may accept data - i.e. the queue is not full, or is closed or had an Exception (so write will throw) */
+  public boolean isWritable() {
+    return !isOpen() || ex != null || room(1) > 0;
+  }
+
+  /** Wait until a write(...) of 'amount' bytes would be accepted, or closed or had an Exception (so write will throw)
+   *  @return true if writable, false if the timeout expired first
+   */
+  public boolean awaitWritable(int amount, long timeout, TimeUnit unit) throws InterruptedException {
+    return awaitState(() -> canAccept(amount), unit.toNanos(timeout));
+  }
+  /** Wait until isWritable() - see awaitWritable(int, long, TimeUnit) */
+  public boolean awaitWritable(long timeout, TimeUnit unit) throws InterruptedException {
+    return awaitState(this::isWritable, unit.toNanos(timeout));
   }
 
-  /** Write from data.position() to data.limit() bytes to the output, return number of bytes written.
-   *  NOTE: Does not block but may return ZERO if no bytes written. Caller must handle this situation.
+  /** Write from data.position() to data.limit() bytes to the output, return number of bytes written - as much of the
+   *  data as fits below maxInFlight.
+   *  NOTE: Does not block but may return ZERO if no bytes written. Caller must handle this situation - unless in
+   *        blocking mode (see setBlocking) in which case it waits until all of the data has been accepted.
    */
   public int write(ByteBuffer data) throws IOException {
-    throwIfEx();
-    if(!isOpen()) throw new ClosedChannelException();
+    int n = writeNow(data);
+    while(blocking && data.hasRemaining()) {
+      awaitBlocking(this::isWritable);
+      n += writeNow(data);
+    }
+    return n;
+  }
 
+  private int writeNow(ByteBuffer data) throws IOException {
+    beginStaging();
+    try {
+      return stage(data);
+    } finally {
+      endStaging();
+    }
+  }
+
+  private int stage(ByteBuffer data) throws IOException {
     synchronized(data) {
       int sending = data.remaining();
       if (bWrite) {
         if (sending > 0) {
           boolean overMax = maxInFlight > 0 && (inFlight.get() + sending) > maxInFlight;
-          debug("Sending " + sending + " bytes, inFlight: " + inFlight.get() + ", OverMax: " + overMax + ", #Writes: " + numWrites.get() + ", TtlDataSent: " + dataWrtn.get());
+          debug("Sending " + sending + " bytes, inFlight: " + inFlight.get() + ", OverMax: " + overMax + ", #Writes: " + numWrites.sum() + ", TtlDataSent: " + dataWrtn.sum());
+        }
+      }
+      if (ring != null) {
+        synchronized(ring) {                    // Only a single producer may use the ring
+          int n = accepts(sending);
+          sending = n > 0 ? ring.put(data, n) : 0;
         }
+      } else if (spill != null) {
+        sending = queueOrSpill(data, sending);
+      } else if ((sending = accepts(sending)) > 0) {
+        byte[] bfr = pool.acquire(sending);
+        data.get(bfr, 0, sending);
+        queue.add(new Chunk(bfr, 0, sending));
       }
-      if (maxInFlight > 0 && sending <= maxInFlight && (inFlight.get() + sending) > maxInFlight)
+      if (sending > 0) staged(sending);
+      return sending;
+    }
+  }
+
+  /** Queue what fits of 'sending' bytes from 'data' and spill the rest. Nothing is queued while anything is spilled,
+   *  so the queue always holds older data than the spill. Returns the amount taken.
+   */
+  private int queueOrSpill(ByteBuffer data, int sending) throws IOException {
+    synchronized(spill) {                       // Only a single producer may use the spill
+      int queued = spill.isEmpty() ? queueRoom(sending) : 0;
+      if (queued > 0) queued = reserve(queued);
+      if (queued > 0) {
+        byte[] bfr = pool.acquire(queued);
+        data.get(bfr, 0, queued);
+        queue.add(new Chunk(bfr, 0, queued));
+      }
+      int taken = queued + spill.put(data, sending - queued);
+      if (taken == 0) rejections.increment();
+      return taken;
+    }
+  }
+
+  /** Zero-copy write - takes ownership of all of src's remaining data, or of none of it. The thread writes straight
+   *  from the backing array of a heap buffer; a direct (or read-only) buffer is copied in slices by the thread, so
+   *  the caller never pays for the copy. Once the data has been sent (or discarded, if the OutputStream fails)
+   *  'release' is called with 'src', on the internal thread, so the caller may reuse it.
+   *  src's position is advanced to its limit when accepted - the caller must not change the content until released.
+   *  NOTE: With ring staging the data is copied into the ring, and 'release' is called at once. src must then fit in
+   *        the ring.
+   * @return src.remaining(), or 0 if it does not fit yet - unless in blocking mode, which waits until it fits.
+   *         A buffer larger than maxInFlight is accepted once the queue is empty.
+   */
+  public int writeOwned(ByteBuffer src, Consumer<ByteBuffer> release) throws IOException {
+    Objects.requireNonNull(release, "release");
+    int n = writeOwnedNow(src, release);
+    while(n == 0 && blocking && src.hasRemaining()) {
+      int amount = src.remaining();
+      awaitBlocking(() -> canAccept(amount));
+      n = writeOwnedNow(src, release);
+    }
+    return n;
+  }
+
+  private int writeOwnedNow(ByteBuffer src, Consumer<ByteBuffer> release) throws IOException {
+    beginStaging();
+    try {
+      return stageOwned(src, release);
+    } finally {
+      endStaging();
+    }
+  }
+
+  private int stageOwned(ByteBuffer src, Consumer<ByteBuffer> release) throws IOException {
+    synchronized(src) {
+      int sending = src.remaining();
+      if (sending == 0) {
+        release.accept(src);
+        return 0;
+      }
+      if (spill != null && (!spill.isEmpty() || !fitsQueue(sending))) {
+        // Follows spilled data, or the queue is full - copy it in, so released at once like the ring
+        synchronized(spill) {
+          if (spill.free() < sending) sending = 0;
+          else spill.put(src, sending);
+        }
+        if (sending > 0) {
+          staged(sending);
+          release.accept(src);
+          return sending;
+        }
+      } else if (ring != null) {
+        if (sending > ring.capacity()) throw new IllegalArgumentException("Owned buffer larger than the ring: " + sending);
+        synchronized(ring) {                    // Only a single producer may use the ring
+          if (ring.free() < sending || !reserveAll(sending)) sending = 0;
+          else ring.put(src);
+        }
+      } else if (fitsQueue(sending) && reserveAll(sending)) {
+        Runnable onSent = () -> release.accept(src);
+        queue.add(src.hasArray() ? new Chunk(src.array(), src.arrayOffset() + src.position(), sending, null, onSent)
+                                 : new Chunk(null, 0, sending, src.duplicate(), onSent));
+        src.position(src.limit());
+      } else
         sending = 0;
-      else {
-        byte[] bfr = new byte[sending];
-        data.get(bfr);
-        queue.add(bfr);
-        inFlight.addAndGet(sending);
+
+      if (sending == 0) {
+        rejections.increment();
+        return 0;
       }
+      staged(sending);
+      if (ring != null) release.accept(src);
       return sending;
     }
   }
 
-  // Write from the queue to the OutputStream.
+  /** Relay - take over a Chunk staged by an InputStreamToChannel (see StreamRelay). The data is queued without
+   *  copying, whole or not at all, and its buffer goes back to the BufferPool once sent - the spill copies it in whole
+   *  and releases it at once. The ring copies in as much as fits, like write(...), so a chunk larger than the ring is
+   *  taken in slices - the buffer is released with the last one.
+   *  Returns the number of bytes taken, 0 if none - the caller consumes them from the chunk.
+   */
+  int acceptRelayed(Chunk chunk) throws IOException {
+    beginStaging();
+    try {
+      return stageRelayed(chunk);
+    } finally {
+      endStaging();
+    }
+  }
+
+  private int stageRelayed(Chunk chunk) throws IOException {
+    int        sending = chunk.len;
+    ByteBuffer src     = ByteBuffer.wrap(chunk.data, chunk.off, chunk.len);
+    if (spill != null && (!spill.isEmpty() || !fitsQueue(sending))) {
+      synchronized(spill) {
+        if (spill.free() < sending) sending = 0;
+        else spill.put(src, sending);
+      }
+      if (sending == 0) rejections.increment();
+    } else if (ring != null) {
+      synchronized(ring) {                      // Only a single producer may use the ring
+        int n = accepts(sending);               // Counts a rejection if none fits
+        sending = n > 0 ? ring.put(src, n) : 0;
+      }
+    } else if (fitsQueue(sending) && reserveAll(sending)) {
+      queue.add(new Chunk(chunk.data, chunk.off, sending));     // A new Chunk, so residency starts now
+      staged(sending);
+      return sending;
+    } else {
+      sending = 0;
+      rejections.increment();
+    }
+
+    if (sending == 0) return 0;
+    staged(sending);
+    if (sending == chunk.len) pool.release(chunk.data);        // Else the rest is still in the input queue
+    return sending;
+  }
+
+  /** Gathering write - srcs[offset] to srcs[offset + length - 1] are coalesced into a single staged chunk, so they
+   *  are sent with one OutputStream write. Like write(ByteBuffer) as much of the data as fits is accepted, in order.
+   *  NOTE: Does not block but may return ZERO if no bytes written. Caller must handle this situation - unless in
+   *        blocking mode (see setBlocking) in which case it waits until all of the data has been accepted.
+   */
+  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    Objects.checkFromIndexSize(offset, length, srcs.length);
+    long n = writeNow(srcs, offset, length);
+    while(blocking && remaining(srcs, offset, length) > 0) {
+      awaitBlocking(this::isWritable);
+      n += writeNow(srcs, offset, length);
+    }
+    return n;
+  }
+
+  private long writeNow(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    beginStaging();
+    try {
+      return stage(srcs, offset, length);
+    } finally {
+      endStaging();
+    }
+  }
+
+  private long stage(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    int sending = (int) Math.min(remaining(srcs, offset, length), Integer.MAX_VALUE - 8);
+    if (spill != null) {
+      // Not coalesced - each buffer is queued or spilled in turn
+      sending = 0;
+      for(int i=offset; i<offset + length; i++) {
+        if (srcs[i].hasRemaining()) sending += queueOrSpill(srcs[i], srcs[i].remaining());
+        if (srcs[i].hasRemaining()) break;
+      }
+    } else if (ring != null) {
+      synchronized(ring) {                      // Only a single producer may use the ring
+        int n = accepts(sending);
+        sending = 0;
+        for(int i=offset; i<offset + length && sending < n; i++) {
+          sending += ring.put(srcs[i], n - sending);
+          if (srcs[i].hasRemaining()) break;
+        }
+      }
+    } else if ((sending = accepts(sending)) > 0) {
+      byte[] bfr = pool.acquire(sending);
+      int    pos = 0;
+      for(int i=offset; i<offset + length && pos < sending; i++) {
+        int amt = Math.min(srcs[i].remaining(), sending - pos);
+        srcs[i].get(bfr, pos, amt);
+        pos += amt;
+      }
+      queue.add(new Chunk(bfr, 0, sending));
+    }
+    if (sending > 0) staged(sending);
+    return sending;
+  }
+
+  public long write(ByteBuffer[] srcs) throws IOException {
+    return write(srcs, 0, srcs.length);
+  }
+
+  private static long remaining(ByteBuffer[] bfrs, int offset, int length) {
+    long total = 0;
+    for(int i=offset; i<offset + length; i++) total += bfrs[i].remaining();
+    return total;
+  }
+
+  /** True if a write of 'amount' bytes would be accepted whole now (or as much as the queue can ever hold), or would
+   *  throw since closed or had an Exception */
+  private boolean canAccept(int amount) {
+    SpillFile s = spill;
+    return !isOpen() || ex != null || ((s == null || s.isEmpty()) && fitsQueue(amount)) || (s != null && s.free() >= amount);
+  }
+
+  /** True if 'amount' bytes would be queued whole now, or as much as the queue (or ring) can ever hold */
+  private boolean fitsQueue(int amount) {
+    int limit = ring != null ? ring.capacity() : maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+    return queueRoom(amount) >= Math.min(amount, limit);
+  }
+
+  /** How much of 'sending' bytes fits right now - in the queue (or ring) and the MemoryBudget, plus the spill */
+  private int room(int sending) {
+    SpillFile s = spill;
+    if (s == null) return queueRoom(sending);
+    int queued = s.isEmpty() ? queueRoom(sending) : 0;
+    return (int) Math.min(sending, queued + s.free());
+  }
+
+  /** How much of 'sending' bytes fits right now - in the queue (or ring) and the MemoryBudget */
+  private int queueRoom(int sending) {
+    if (ring != null)
+      sending = Math.min(sending, ring.free());
+    else if (maxInFlight > 0)
+      sending = Math.max(0, Math.min(sending, maxInFlight - inFlight.get()));
+    return reservable(sending);
+  }
+
+  /** Reserve what fits of 'sending' bytes from the MemoryBudget - counting a write which can accept nothing for the
+   *  backpressure metric */
+  private int accepts(int sending) {
+    if (sending == 0) return 0;
+    int n = room(sending);
+    if (n > 0) n = reserve(n);
+    if (n == 0) rejections.increment();
+    return n;
+  }
+
+  /** Enter a write - counted until endStaging(), so the thread does not finish a close while data may still be staged */
+  private void beginStaging() throws IOException {
+    throwIfEx();
+    staging.incrementAndGet();
+    if(!isOpen()) {                           // Checked after counting - see run()
+      staging.decrementAndGet();
+      throw new ClosedChannelException();
+    }
+  }
+
+  /** Leave a write. If the channel ended meanwhile (abort(), or the thread died) what it staged will not be sent, so
+   *  it is discarded and the write throws rather than return a count.
+   */
+  private void endStaging() throws IOException {
+    try {
+      if(thrd == null) {                      // Not closed by the thread - it waits for staging to reach 0
+        discardIfEnded();
+        throwIfEx();
+        throw new AsynchronousCloseException();
+      }
+    } finally {
+      if(staging.decrementAndGet() == 0 && closing) wakeWriter();
+    }
+  }
+
+  /** Account for data accepted from the caller, and wake the thread if it is waiting */
+  private void staged(int sending) {
+    chunkSizes.record(sending);
+    dataAccepted.add(sending);
+    if(inFlight.addAndGet(sending) == sending && ring != null) ringStaged = System.nanoTime();
+    if(writerWaiting) wakeWriter();
+  }
+
+  // Write from the queue (or ring) to the OutputStream.
   public void run() {
-    Delay delay       = new Delay(sleepStep, sleepMax, sleepByDoubling);
+    writer = Thread.currentThread();
+    byte[] bfrCombine = maxInFlight > 0 && maxWriteSz > 0 && ring == null ? new byte[maxWriteSz] : null;
 
-    byte[] bfrCombine = maxInFlight > 0 ? new byte[maxInFlight] : null;
+    byte[] bfrSpill   = null;
+    Chunk  inHand     = null;                   // Taken from the queue but not yet sent - released if the send fails
 
+    long linger;
     while(thrd != null) try {
-      if(queue.isEmpty())
-        delay.delay();
-      else {
-        byte[] peek = queue.peek();               // Must be non-null since Q not empty
-        int amtSent = peek.length;
-
-        if (maxInFlight <= 0) {                   // Always send each block without accumulating data
-          strm.write(peek);                       // May block
-          numWrites.incrementAndGet();
-          dataWrtn.addAndGet(peek.length);
-        } else if(peek.length >= maxWriteSz){     // Special case - single blocks sent even if large
-          strm.write(peek);
+      if(flushDue())
+        flushStream();
+      else if(nothingStaged()) {
+        if(closing && staging.get() == 0 && nothingStaged()) {   // No write still past its open check, nor data
+          strm.flush();
+          flushDone = dataWrtn.sum();           // A flush() waiting on the close returns normally
+          finishClose(null);
+        } else
+          waitForData();
+      } else if((linger = lingerLeft()) > 0)
+        waitForLinger(linger);
+      else if(ring != null) {
+        long t0      = System.nanoTime();
+        int  amtSent = ring.writeTo(strm, maxWriteSz > 0 ? maxWriteSz : Integer.MAX_VALUE);   // May block
+        stalled(t0);
+        if(flushEachBatch) strm.flush();
+        numWrites.increment();
+        dataWrtn.add(amtSent);
+        inFlight.addAndGet( -amtSent );
+        unreserve(amtSent);
+        signalState();
+      } else if(queue.isEmpty()) {
+        // Only spilled data left - the queue is always sent first, and nothing is queued while data is spilled
+        if(bfrSpill == null) bfrSpill = new byte[maxWriteSz > 0 ? maxWriteSz : 64 * 1024];
+        long t0      = System.nanoTime();
+        int  amtSent = spill.writeTo(strm, bfrSpill);     // May block
+        stalled(t0);
+        if(flushEachBatch) strm.flush();
+        numWrites.increment();
+        dataWrtn.add(amtSent);
+        inFlight.addAndGet( -amtSent );         // Not reserved from the MemoryBudget
+        signalState();
+      } else {
+        Chunk first   = queue.poll();           // Must be non-null since Q not empty - only this thread takes from it
+        Chunk next    = queue.peek();
+        int   amtSent = first.len;
+        long  t0;
+
+        if (first.onSent != null) {
+          // Owned by the caller - send straight from it, then hand it back
+          t0 = System.nanoTime();
+          inHand = first;
+          sendOwned(first, bfrCombine);
+          inHand = null;
+          release(first);                       // Sent - a failing callback must not end the thread
+          residency.record(System.nanoTime() - first.staged);
+        } else if (bfrCombine == null || first.len >= maxWriteSz || next == null || next.onSent != null || (first.len + next.len) > maxWriteSz) {
+          // Send this block as-is - not accumulating, large enough on its own, or nothing to combine it with
+          t0 = System.nanoTime();
+          inHand = first;
+          strm.write(first.data, first.off, first.len);     // May block
+          inHand = null;
+          residency.record(System.nanoTime() - first.staged);
+          pool.release(first.data);
         } else {
-          // Check cases to see if we can just send this first buffer
-          byte[] prev = peek;
-          queue.removeFirst();          // Will at least send this first one
-          peek = queue.peek();          // And look at the next one
-          if(peek==null){               // no more in Q
-            strm.write(prev);           // ... so just send this one
-          } else if((prev.length + peek.length) > maxWriteSz){
-            strm.write(prev);
-            peek = null;                // So we don't remove first from Q
-          } else {
-            amtSent = 0;
-            while(peek != null){        // Accumulate several in the buffer, then send it
-              System.arraycopy(prev, 0, bfrCombine, amtSent, prev.length);
-              amtSent += prev.length;
-              peek = queue.peek();
-              if(peek==null || (amtSent + peek.length) > maxWriteSz ){
-                strm.write(bfrCombine, 0, amtSent);
-                peek = null;              // So finish code below does not remove from Q
-              } else {
-                prev = peek;
-                queue.removeFirst();
-              }
-            }
+          // Accumulate several in the buffer, then send it
+          long oldest = first.staged;
+          System.arraycopy(first.data, first.off, bfrCombine, 0, first.len);
+          pool.release(first.data);
+          while(next != null && next.onSent == null && (amtSent + next.len) <= maxWriteSz) {
+            Chunk taken = queue.poll();           // The chunk peeked at - copy and release the one actually taken
+            System.arraycopy(taken.data, taken.off, bfrCombine, amtSent, taken.len);
+            amtSent += taken.len;
+            pool.release(taken.data);
+            next = queue.peek();
           }
+          t0 = System.nanoTime();
+          strm.write(bfrCombine, 0, amtSent);
+          residency.record(System.nanoTime() - oldest);
         }
+        stalled(t0);
+        if(flushEachBatch) strm.flush();
 
-        if( peek != null ) queue.removeFirst();
-        numWrites.incrementAndGet();
-        dataWrtn.addAndGet(amtSent);
+        numWrites.increment();
+        dataWrtn.add(amtSent);
         inFlight.addAndGet( -amtSent );
-        delay.reset();
+        unreserve(amtSent);
+        signalState();
       }
     } catch (Exception e){
-      ex = e;
+      if(ex == null) ex = e;
       thrd = null;
+      if(inHand != null) release(inHand);
+      discardQueue();
+      signalState();
+      if(closing) finishClose(null);          // Else closeAsync() finishes, since the thread has ended
+    }
+    writerEnded = true;                       // Ended by abort() or an Exception - discard what was left, or staged since
+    discardQueue();
+    if(closeDone.get()) try {
+      closeSpill();                           // Closed while this thread ran - finishClose() left the spill to it
+    } catch(IOException e) {
+      if(bThread) debug("Closing the spill failed - Ex: " + e.toString());
+    }
+  }
+
+  /** Close and delete the SpillFile, if any - only on the thread, or once it has ended, so it is not sending from the
+   *  spill. Under the spill's lock, so no write(...) is in the middle of spilling either.
+   */
+  private void closeSpill() throws IOException {
+    SpillFile s = spill;
+    if(s != null) synchronized(s) {
+      s.close();
     }
   }
+
+  /** Write an owned chunk - a direct buffer is copied through 'scratch' (or a pooled buffer) in slices. The caller
+   *  hands it back once sent.
+   */
+  private void sendOwned(Chunk chunk, byte[] scratch) throws IOException {
+    if (chunk.data != null)
+      strm.write(chunk.data, chunk.off, chunk.len);     // May block
+    else {
+      byte[] tmp = scratch != null ? scratch : pool.acquire(Math.min(chunk.len, 64 * 1024));
+      while(chunk.direct.hasRemaining()) {
+        int amt = Math.min(chunk.direct.remaining(), tmp.length);
+        chunk.direct.get(tmp, 0, amt);
+        strm.write(tmp, 0, amt);                        // May block
+      }
+      if (scratch == null) pool.release(tmp);
+    }
+  }
+
+  /** Discard the queue once the thread has ended - while it runs only it may take from the queue, so it discards
+   *  the queue itself as it ends */
+  private void discardIfEnded() {
+    if(writerEnded) discardQueue();
+  }
+
+  /** Nothing more will be sent after an Exception - return the queued buffers to the pool, or to their owners */
+  private void discardQueue() {
+    Chunk chunk;
+    while((chunk = queue.poll()) != null) release(chunk);
+  }
+
+  /** Return a chunk which has been sent, or will not be, to the pool - or to its owner, ignoring a failing callback */
+  private void release(Chunk chunk) {
+    if (chunk.onSent == null)
+      pool.release(chunk.data);
+    else try {
+      chunk.onSent.run();
+    } catch(RuntimeException e) {
+      if(bThread) debug("Release callback failed - Ex: " + e.toString());
+    }
+  }
+
+  /** Wait with the WaitStrategy until write(...) adds data, flush() or closed - by default spin for spinCount checks of the
+   *  queue, then park */
+  private void waitForData() {
+    writerWaiting = true;
+    try {
+      idleUntil(() -> !nothingStaged() || flushDue() || (closing && staging.get() == 0), spinThenPark);
+    } finally {
+      writerWaiting = false;
+    }
+  }
+
+  /** Nanos left to hold back the staged data - 0 or less == send it now */
+  private long lingerLeft() {
+    long linger = lingerNanos;
+    if(linger <= 0 || closing || inFlight.get() >= lingerBytes || flushDone < flushTarget.get()) return 0;
+    Chunk first = ring != null ? null : queue.peek();     // Only this thread takes from the Q
+    if(ring == null && first == null) return 0;             // Only spilled data, so backlogged
+    long oldest = ring != null ? ringStaged : first.staged;
+    return linger - (System.nanoTime() - oldest);
+  }
+
+  /** True if there is nothing in the queue (or ring) or the spill */
+  private boolean nothingStaged() {
+    SpillFile s = spill;
+    return isStagingEmpty() && (s == null || s.isEmpty());
+  }
+
+  /** Park for up to 'nanos' - write(...), flush() and close() un-park the thread to check again */
+  private void waitForLinger(long nanos) {
+    writerWaiting = true;
+    try {
+      LockSupport.parkNanos(this, nanos);
+    } finally {
+      writerWaiting = false;
+    }
+  }
+
+  /** True once all the data a flush() waits for has been written to the OutputStream, but not yet flushed. Counted in
+   *  bytes rather than by emptying the staging, so writers which keep it busy cannot hold up a flush() for ever.
+   */
+  private boolean flushDue() {
+    long target = flushTarget.get();
+    return flushDone < target && dataWrtn.sum() >= target;
+  }
+
+  /** All the data requested by flush() has been written - flush the OutputStream and release the callers */
+  private void flushStream() throws IOException {
+    long upTo = dataWrtn.sum();               // Only this thread adds to it
+    strm.flush();
+    flushDone = upTo;
+    signalState();
+  }
+
+  private void wakeWriter() {
+    Thread t = thrd;
+    if(t != null) LockSupport.unpark(t);
+  }
 }
@@ -0,0 +1,51 @@
+package jdcchannel;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** ThreadFactory choices for the internal threads of InputStreamToChannel and OutputStreamToChannel.
+ *
+ *  Each stream channel needs one thread which blocks in InputStream.read or OutputStream.write. With JDK 21+
+ *  virtual threads that blocking costs almost nothing, so thousands of wrapped Sockets do not need thousands of
+ *  platform threads and their stacks.
+ *
+ *  The default for all channels is platform(), change it with InOutCommon.setDefaultThreadFactory(...), or pass
+ *  a ThreadFactory to the constructor of an individual channel.
+ */
+public class PumpThreads {
+
+  private static final ThreadFactory virtual = findVirtual();
+
+  /** A regular platform Thread for each channel - as always created before */
+  public static ThreadFactory platform() {
+    return Thread::new;
+  }
+
+  /** Platform daemon Threads named 'prefix-N', so the JVM may exit while channels are still open */
+  public static ThreadFactory daemon(String prefix) {
+    AtomicInteger count = new AtomicInteger(0);
+    return r -> {
+      Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /** True if running on a JDK which supports virtual threads (JDK 21+) */
+  public static boolean isVirtualAvailable() { return virtual != null; }
+
+  /** A virtual Thread for each channel. Falls back to daemon("jdcchannel") if virtual threads are not available. */
+  public static ThreadFactory virtual() {
+    return virtual != null ? virtual : daemon("jdcchannel");
+  }
+
+  /** Use reflection so this still compiles and runs on JDKs before 21 */
+  private static ThreadFactory findVirtual() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+    } catch(Exception ex) {
+      return null;
+    }
+  }
+}
@@ -1,27 +1,40 @@
 package jdcchannel;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketOption;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Path;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
 
-/** Takes a Socket and provides a non-blocking SocketChannel. This does NOT use the selector logic!
+/** Takes a Socket and provides a non-blocking SocketChannel.
  *
  * WARNING
  * -------
  * - Expects the Socket to already be set up and connected. Otherwise throws an exception from Constructor.
  * - Constructor throws IOException if the getInputStream or getOutputStream of Socket throw
- * - Only supports the read(ByteBuffer dst) and write(ByteBuffer src) methods plus some that are simple
+ * - Only supports the read(...) and write(...) methods (including scatter/gather) plus some that are simple
  *    pass-through calls to the Socket. All of the rest will throw an exception if called.
- * - isBlocking and configureBlocking methods are essentially ignored (and cannot be overridden!). This
- *   SocketChannel will always operate in a non-blocking mode.
+ * - Non-blocking by default. configureBlocking(true) makes read(...) wait for data, EOF or an error, and write(...)
+ *   wait until all of the data is queued. See also awaitReadable and awaitWritable.
+ * - Can only be registered with a StreamSelector (see StreamSelectorProvider), not with a JDK Selector.
  *
  * Creates a READ Thread and a WRITE Thread to handle the read(...) & write(...) methods as non-blocking. Caller
- * must be able to handle a read(bfr) or write(bfr) which returns 0 bytes processed. Read may also return -1 == EOF
+ * must be able to handle a read(bfr) or write(bfr) which returns 0 bytes processed (unless blocking). Read may also
+ * return -1 == EOF
  *
  * NOTE: the read(bytebuffer) and write(bytebuffer) methods SYNCHRONIZE on the ByteBuffer since they are not thread safe.
  */
@@ -31,6 +44,7 @@ public class SocketToSocketChannel extends SocketChannel {
   private Socket                skt;
   public InputStreamToChannel   instrm;
   private OutputStreamToChannel outstrm;
+  private volatile long         closeTimeoutNanos = TimeUnit.SECONDS.toNanos(30);   // close() drain limit, 0 == none
 
   int rdMaxInFlight;  int rdMaxBfr;   int rdSleepStep; int rdSleepMax; boolean rdSleepByDoubling;
   int wrtMaxInFlight; int wrtMaxSize; int wrtSleepStep; int wrtSleepMax; boolean wrtSleepByDoubling;
@@ -43,7 +57,7 @@ public class SocketToSocketChannel extends SocketChannel {
    *
    * @param label             - user-defined label for this SocketChannel
    * @param socket            - the base Socket to treat as a Channel
-   * @param selectorProvider  - NOT USED - passed to Channel, but this does NOT support Selector logic
+   * @param selectorProvider  - a StreamSelectorProvider, anything else (including null) uses StreamSelectorProvider.provider()
    * @param rdMaxInFlight     - Max amount of in-process data before stop reading InputStream until some is consumed
    * @param rdMaxBuffer       - Max size of InputStream buffer. Note: May exceed rdMaxInFlight if current max + next read exceeds.
    * @param rdSleepStep       - Delay parameters for processing InputStream - see Delay
@@ -56,13 +70,16 @@ public class SocketToSocketChannel extends SocketChannel {
    * @param wrtSleepStep      - Delay parameters for processing OutputStream - see Delay
    * @param wrtSleepMax       - ditto
    * @param wrtSleepByDoubling- ditto
+   * @param ringStaging       - True == stage the data for both directions in a ByteRing instead of a queue of byte[]
+   * @param threadFactory     - creates the READ and WRITE Threads, null == the default - see PumpThreads
    *
    * @throws IOException
    */
   public SocketToSocketChannel(String label, Socket socket, SelectorProvider selectorProvider,
                                int rdMaxInFlight, int rdMaxBuffer, int rdSleepStep, int rdSleepMax, boolean rdSleepByDoubling,
-                               int wrtMaxInFlight, int wrtMaxSize, int wrtSleepStep, int wrtSleepMax, boolean wrtSleepByDoubling) throws IOException {
-    super(selectorProvider);
+                               int wrtMaxInFlight, int wrtMaxSize, int wrtSleepStep, int wrtSleepMax, boolean wrtSleepByDoubling,
+                               boolean ringStaging, ThreadFactory threadFactory) throws IOException {
+    super(StreamSelectorProvider.of(selectorProvider));
     if(!socket.isConnected()) throw new IllegalStateException("The Socket must already be connected.");
 
     this.label              = label;
@@ -80,8 +97,23 @@ public class SocketToSocketChannel extends SocketChannel {
 
     configureBlocking(false);
 
-    instrm  = new InputStreamToChannel(label + " InStrm", skt.getInputStream(), rdMaxInFlight, rdMaxBfr, rdSleepStep, rdSleepMax, rdSleepByDoubling);
-    outstrm = new OutputStreamToChannel(label + " OutStrm", skt.getOutputStream(), wrtMaxInFlight, wrtMaxSize, wrtSleepStep, wrtSleepMax, wrtSleepByDoubling);
+    instrm  = new InputStreamToChannel(label + " InStrm", halfCloseable(skt), rdMaxInFlight, rdMaxBfr, rdSleepStep, rdSleepMax, rdSleepByDoubling, ringStaging, threadFactory);
+    outstrm = new OutputStreamToChannel(label + " OutStrm", skt.getOutputStream(), wrtMaxInFlight, wrtMaxSize, wrtSleepStep, wrtSleepMax, wrtSleepByDoubling, ringStaging, threadFactory);
+  }
+  /** CONSTRUCTOR - all parameters except ringStaging, which uses the queues */
+  public SocketToSocketChannel(String label, Socket socket, SelectorProvider selectorProvider,
+                               int rdMaxInFlight, int rdMaxBuffer, int rdSleepStep, int rdSleepMax, boolean rdSleepByDoubling,
+                               int wrtMaxInFlight, int wrtMaxSize, int wrtSleepStep, int wrtSleepMax, boolean wrtSleepByDoubling,
+                               ThreadFactory threadFactory) throws IOException {
+    this(label, socket, selectorProvider, rdMaxInFlight, rdMaxBuffer, rdSleepStep, rdSleepMax, rdSleepByDoubling,
+         wrtMaxInFlight, wrtMaxSize, wrtSleepStep, wrtSleepMax, wrtSleepByDoubling, false, threadFactory);
+  }
+  /** CONSTRUCTOR - all parameters except the ThreadFactory, which is the default */
+  public SocketToSocketChannel(String label, Socket socket, SelectorProvider selectorProvider,
+                               int rdMaxInFlight, int rdMaxBuffer, int rdSleepStep, int rdSleepMax, boolean rdSleepByDoubling,
+                               int wrtMaxInFlight, int wrtMaxSize, int wrtSleepStep, int wrtSleepMax, boolean wrtSleepByDoubling) throws IOException {
+    this(label, socket, selectorProvider, rdMaxInFlight, rdMaxBuffer, rdSleepStep, rdSleepMax, rdSleepByDoubling,
+         wrtMaxInFlight, wrtMaxSize, wrtSleepStep, wrtSleepMax, wrtSleepByDoubling, null);
   }
   /** CONSTRUCTOR - defaults for all buffer sizes and delays */
   public SocketToSocketChannel(String label, Socket socket, SelectorProvider provider) throws IOException {
@@ -96,6 +128,17 @@ public class SocketToSocketChannel extends SocketChannel {
     this(label, socket, null);
   }
 
+  /** The Socket InputStream - closing it (e.g. at EOF) only shuts down the input, like a SocketChannel, so data may
+   *  still be written after the peer has shut down its output. The Socket itself is closed by close().
+   */
+  private static InputStream halfCloseable(Socket skt) throws IOException {
+    return new FilterInputStream(skt.getInputStream()) {
+      public void close() throws IOException {
+        if(!skt.isClosed() && !skt.isInputShutdown()) skt.shutdownInput();
+      }
+    };
+  }
+
   public String toString() {
     return "SktChannel[" + label + ", From: " + socket().getRemoteSocketAddress().toString() + "]";
   }
@@ -103,25 +146,83 @@ public class SocketToSocketChannel extends SocketChannel {
   public int read(ByteBuffer dst) throws IOException {
     return instrm.read(dst);
   }
-  /** Write from the ByteBuffer to the Socket, returns 0 if no bytes written and caller must handle */
+  /** Write from the ByteBuffer to the Socket - as much as fits in the output queue, 0 if none and caller must handle */
   public int write(ByteBuffer src) throws IOException {
     return outstrm.write(src);
   }
+  /** Scattering read from the Socket into the ByteBuffers in a single pass. Return 0 if no data available, -1 if EOF */
+  public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    return instrm.read(dsts, offset, length);
+  }
+  /** Gathering write - the ByteBuffers are coalesced and sent in a single write. May accept part, or 0 bytes. */
+  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    return outstrm.write(srcs, offset, length);
+  }
+
+  /** The OutputStreamToChannel which writes to the Socket */
+  OutputStreamToChannel outputStreamChannel() { return outstrm; }
+
+  /** The SelectionKey ready ops - OP_READ if read(...) would not return 0, OP_WRITE if the output queue is not full */
+  int readyOps() {
+    int ops = 0;
+    if(instrm.isReadable())  ops |= SelectionKey.OP_READ;
+    if(outstrm.isWritable()) ops |= SelectionKey.OP_WRITE;
+    return ops;
+  }
+  /** Run 'listener' whenever the readiness of either the InputStream or OutputStream side may have changed */
+  void addStateListener(Runnable listener) {
+    instrm.addStateListener(listener);
+    outstrm.addStateListener(listener);
+  }
+  void removeStateListener(Runnable listener) {
+    instrm.removeStateListener(listener);
+    outstrm.removeStateListener(listener);
+  }
 
   /** Amount of data currently staged in the InputStream internal buffer. NOTE: Returns -1 if EOF **/
   public int inInFlight() { return instrm.inFlight(); }
   public int available()  { return inInFlight(); }
   /** Number of physical reads completed on the InputStream */
-  public int numReads()   { return instrm.numReads(); }
+  public long numReads()   { return instrm.numReads(); }
   /** Total data read from the InputStream */
-  public int dataRead()   { return instrm.dataRead(); }
+  public long dataRead()   { return instrm.dataRead(); }
   /** The number of physical writes completed to the OutputStream. */
-  public int numWrites()   { return outstrm.numWrites(); }
+  public long numWrites()   { return outstrm.numWrites(); }
   /** Total number of bytes sent to the OutputStream */
-  public int dataSent()    { return outstrm.dataSent(); }
+  public long dataSent()    { return outstrm.dataSent(); }
   /** Number of bytes queued to be sent to the OutputStream */
   public int outInFlight() { return outstrm.inFlight(); }
 
+  /** Hold back small writes to combine them - see OutputStreamToChannel.setLinger */
+  public void setLinger(long micros, int bytes) { outstrm.setLinger(micros, bytes); }
+  /** Send all the data written so far and flush the Socket OutputStream, waiting until done */
+  public void flush() throws IOException        { outstrm.flush(); }
+  /** Spill what does not fit below maxInFlight to a memory-mapped file - see OutputStreamToChannel.setSpill */
+  public void setSpill(Path dir, long maxBytes) throws IOException { outstrm.setSpill(dir, maxBytes); }
+
+  /** Let the Socket InputStream read size adapt between minSize and maxSize - see InputStreamToChannel.setReadSizeRange */
+  public void setReadSizeRange(int minSize, int maxSize) { instrm.setReadSizeRange(minSize, maxSize); }
+
+  /** Reserve the data staged in both directions from a shared MemoryBudget - see InOutCommon.setMemoryBudget */
+  public void setMemoryBudget(MemoryBudget budget) {
+    instrm.setMemoryBudget(budget);
+    outstrm.setMemoryBudget(budget);
+  }
+
+  /** The WaitStrategy of both internal threads - see InOutCommon.setWaitStrategy */
+  public void setWaitStrategy(WaitStrategy strategy) {
+    instrm.setWaitStrategy(strategy);
+    outstrm.setWaitStrategy(strategy);
+  }
+
+  /** Publish the metrics of both sides as JMX MBeans, named with the label + " InStrm" / " OutStrm" - removed when closed */
+  public void registerMBeans() throws JMException {
+    instrm.registerMBean();
+    outstrm.registerMBean();
+  }
+  public ChannelStats inputStats()  { return instrm.stats(); }
+  public ChannelStats outputStats() { return outstrm.stats(); }
+
   // Supported methods that are simple pass-through to the Socket or basic implementation
   public Socket socket()                                      { return skt; }
   public boolean isConnected()                                { return skt.isConnected(); }
@@ -131,7 +232,79 @@ public class SocketToSocketChannel extends SocketChannel {
   public SocketChannel shutdownInput() throws IOException     { skt.shutdownInput(); return this; }
   public SocketChannel shutdownOutput() throws IOException    { skt.shutdownOutput(); return this; }
 
-  protected void implConfigureBlocking(boolean block) throws IOException { return; }
+  /** Wait until a read(...) would not return 0 - data is available, EOF or an error. False if the timeout expired first. */
+  public boolean awaitReadable(long timeout, TimeUnit unit) throws InterruptedException {
+    return instrm.awaitReadable(timeout, unit);
+  }
+  /** Wait until the output queue has space, or closed / error. False if the timeout expired first. */
+  public boolean awaitWritable(long timeout, TimeUnit unit) throws InterruptedException {
+    return outstrm.awaitWritable(timeout, unit);
+  }
+
+  protected void implConfigureBlocking(boolean block) throws IOException {
+    if(instrm != null) instrm.setBlocking(block);     // null while called from the Constructor
+    if(outstrm != null) outstrm.setBlocking(block);
+  }
+
+  /** Max time close() waits for the output queue to be sent - then the unsent data is dropped and close() throws.
+   *  0 == wait for ever. Default 30 seconds.
+   */
+  public void setCloseTimeout(long timeout, TimeUnit unit) {
+    if(timeout < 0) throw new IllegalArgumentException("timeout must be >= 0");
+    closeTimeoutNanos = unit.toNanos(timeout);
+  }
+  public long getCloseTimeout(TimeUnit unit) { return unit.convert(closeTimeoutNanos, TimeUnit.NANOSECONDS); }
+
+  /** Close both directions in parallel - the output queue drains on its own thread while the input is shut down -
+   *  then close the Socket once the output has been sent, or the close timeout expired. Any SelectionKeys are
+   *  cancelled by the caller.
+   */
+  protected void implCloseSelectableChannel() throws IOException {
+    long                    timeout = closeTimeoutNanos;
+    CompletableFuture<Void> drained = timeout > 0 ? outstrm.closeAsync(timeout, TimeUnit.NANOSECONDS) : outstrm.closeAsync();
+    IOException             failure = null;
+    try {
+      instrm.close();
+    } catch(IOException e) {
+      failure = e;                              // Still wait for the output, so its tail is not cut off
+    }
+    try {
+      drained.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      outstrm.abort();
+      failure = firstFailure(failure, new InterruptedIOException("Interrupted while closing " + label));
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      failure = firstFailure(failure, cause instanceof IOException ? (IOException) cause : new IOException("Close failed on " + label, cause));
+    } finally {
+      skt.close();
+    }
+    if(failure != null) throw failure;
+  }
+
+  private static IOException firstFailure(IOException first, IOException next) {
+    if(first == null) return next;
+    first.addSuppressed(next);
+    return first;
+  }
+
+  /** Close the Socket once the output queue has been sent, without waiting - see OutputStreamToChannel.closeAsync.
+   *  Unlike close() the channel only reports !isOpen() once the future completes. The Socket is closed on a pool
+   *  thread, not the thread which writes to it.
+   *  @return completes once the Socket is closed, or not before the timeout - after which the unsent data is dropped
+   */
+  public CompletableFuture<Void> closeAsync(long timeout, TimeUnit unit) {
+    return outstrm.closeAsync(timeout, unit).handleAsync((v, e) -> {
+      try {
+        close();
+      } catch(IOException ce) {
+        if(e == null) e = ce;
+      }
+      if(e != null) throw new CompletionException(e);
+      return null;
+    });
+  }
 
   /************************* Methods NOT Supported **********************/
   private void throwNYI() { throw new IllegalStateException("NOT YET IMPLEMENTED"); }
@@ -142,7 +315,4 @@ public class SocketToSocketChannel extends SocketChannel {
   public Set<SocketOption<?>> supportedOptions()                                        { throwNYI(); return null; }
   public boolean connect(SocketAddress remote) throws IOException                       { throwNYI(); return false; }
   public boolean finishConnect() throws IOException                                     { throwNYI(); return false; }
-  public long read(ByteBuffer[] dsts, int offset, int length) throws IOException        { throwNYI(); return -1; }
-  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException       { throwNYI(); return -1; }
-  protected void implCloseSelectableChannel() throws IOException                        { throwNYI(); return ; }
 }
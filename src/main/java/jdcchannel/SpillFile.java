@@ -0,0 +1,133 @@
+package jdcchannel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** FIFO of bytes in a memory-mapped file - the overflow for OutputStreamToChannel, so a burst larger than
+ *  maxInFlight is absorbed without holding it on the heap.
+ *
+ *  The file is a ring of fixed-size segments, each mapped the first time it is used. Positions are counters, as in
+ *  ByteRing, so the data wraps from the last segment to the first. The mapped pages live in the page cache, not the
+ *  heap, and the OS writes them to disk only under memory pressure. The file is deleted by close().
+ *
+ *  NOTE: Like ByteRing, exactly one thread may call put and exactly one thread may call writeTo at any one time.
+ */
+public class SpillFile implements Closeable {
+
+  private final Path                path;
+  private final FileChannel         file;
+  private final int                 segmentSize;
+  private final long                capacity;
+  private final MappedByteBuffer[]  segments;
+  private final AtomicLong          head  = new AtomicLong(0);     // Next byte to be consumed - only the consumer changes it
+  private final AtomicLong          tail  = new AtomicLong(0);     // Next byte to be produced - only the producer changes it
+  private volatile boolean          closed = false;
+
+  /**
+   * @param dir         - directory for the file, null == the default temporary-file directory
+   * @param capacity    - max bytes held, rounded up to a whole number of segments
+   * @param segmentSize - bytes mapped at a time
+   */
+  public SpillFile(Path dir, long capacity, int segmentSize) throws IOException {
+    if(segmentSize <= 0) throw new IllegalArgumentException("segmentSize must be > 0");
+    if(capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+    long nSegs = (capacity + segmentSize - 1) / segmentSize;
+    if(nSegs > 1 << 20) throw new IllegalArgumentException("Too many segments: " + nSegs + ", use a larger segmentSize");
+
+    this.segmentSize  = segmentSize;
+    this.capacity     = nSegs * segmentSize;
+    this.segments     = new MappedByteBuffer[(int) nSegs];
+    this.path         = dir == null ? Files.createTempFile("jdcchannel-", ".spill") : Files.createTempFile(dir, "jdcchannel-", ".spill");
+    this.file         = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+  /** Segments of up to 64 MB */
+  public SpillFile(Path dir, long capacity) throws IOException {
+    this(dir, capacity, (int) Math.min(capacity, 64 << 20));
+  }
+
+  public Path getPath()         { return path; }
+  public long capacity()        { return capacity; }
+  public int  getSegmentSize()  { return segmentSize; }
+  /** Number of bytes held - may be stale as soon as it is returned */
+  public long size()            { return tail.get() - head.get(); }
+  public long free()            { return capacity - size(); }
+  public boolean isEmpty()      { return tail.get() == head.get(); }
+  /** Total bytes ever put */
+  public long getTotalSpilled() { return tail.get(); }
+
+  /************************************** Producer **************************************/
+
+  /** Copy up to 'max' bytes from src into the free space - returns the number of bytes copied */
+  public int put(ByteBuffer src, int max) throws IOException {
+    if(closed) throw new IOException("SpillFile is closed: " + path);
+    long t   = tail.get();
+    int  amt = (int) Math.min(Math.min(src.remaining(), max), capacity - (t - head.get()));
+    for(int done = 0; done < amt; ) {
+      long pos = t + done;
+      int  off = (int) (pos % segmentSize);
+      int  n   = Math.min(amt - done, segmentSize - off);
+      segment((int) (pos / segmentSize % segments.length)).put(off, src, src.position(), n);
+      src.position(src.position() + n);
+      done += n;
+    }
+    tail.lazySet(t + amt);
+    return amt;
+  }
+
+  /** Map the segment on first use - extends the file. Only the producer maps, before it publishes the new tail. */
+  private MappedByteBuffer segment(int idx) throws IOException {
+    MappedByteBuffer seg = segments[idx];
+    if(seg == null) {
+      if(!file.isOpen()) throw new IOException("SpillFile is closed: " + path);
+      seg = segments[idx] = file.map(FileChannel.MapMode.READ_WRITE, (long) idx * segmentSize, segmentSize);
+    }
+    return seg;
+  }
+
+  /************************************** Consumer **************************************/
+
+  /** Write the oldest data to the OutputStream, up to scratch.length bytes and within one segment (may block).
+   *  @return the number of bytes written, 0 if empty
+   */
+  public int writeTo(OutputStream out, byte[] scratch) throws IOException {
+    if(closed) throw new IOException("SpillFile is closed: " + path);
+    long h   = head.get();
+    long pos = h % capacity;
+    int  off = (int) (pos % segmentSize);
+    int  amt = (int) Math.min(Math.min(tail.get() - h, scratch.length), segmentSize - off);
+    if(amt == 0) return 0;
+
+    segments[(int) (pos / segmentSize)].get(off, scratch, 0, amt);
+    out.write(scratch, 0, amt);
+    head.lazySet(h + amt);
+    return amt;
+  }
+
+  /** Close and delete the file - any data still held is lost. Only once no thread is in put or writeTo - then they
+   *  throw IOException. Closing again does nothing.
+   */
+  public synchronized void close() throws IOException {
+    if(closed) return;
+    closed = true;
+    Arrays.fill(segments, null);              // Unmapped once garbage collected
+    file.close();
+    try {
+      Files.deleteIfExists(path);
+    } catch(IOException e) {
+      path.toFile().deleteOnExit();           // Some platforms do not allow deleting a file which is still mapped
+    }
+  }
+
+  public String toString() {
+    return "SpillFile[" + path + ", size=" + size() + " of " + capacity + "]";
+  }
+}
@@ -0,0 +1,82 @@
+package jdcchannel;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/** Factory methods, like java.nio.channels.Channels, which return the underlying NIO channel when the stream or
+ *  Socket already has one, and only wrap truly opaque streams in an InputStreamToChannel, OutputStreamToChannel or
+ *  SocketToSocketChannel - avoiding the internal thread and queue when they are pure overhead.
+ *
+ *  - FileInputStream / FileOutputStream of a regular file - returns getChannel(). A FileChannel read or write of a
+ *    file does not wait on a peer, so it is used as-is. A pipe, FIFO, tty or socket (e.g. FileDescriptor.in) is
+ *    wrapped like any other stream, since its read would block. Only the exact classes are detected, a subclass may
+ *    override read or write.
+ *  - Socket created from a SocketChannel - returns getChannel(), configured as non-blocking to match the
+ *    SocketToSocketChannel. NOTE: a native SocketChannel must be registered with a JDK Selector, not a StreamSelector.
+ */
+public class StreamChannels {
+
+  private StreamChannels() { }
+
+  /** A ReadableByteChannel for the InputStream - the FileChannel of a FileInputStream, else an InputStreamToChannel */
+  public static ReadableByteChannel newChannel(String label, InputStream strm) {
+    if(hasNativeChannel(strm)) return ((FileInputStream) strm).getChannel();
+    return new InputStreamToChannel(label, strm);
+  }
+
+  /** A WritableByteChannel for the OutputStream - the FileChannel of a FileOutputStream, else an OutputStreamToChannel */
+  public static WritableByteChannel newChannel(String label, OutputStream strm) {
+    if(hasNativeChannel(strm)) return ((FileOutputStream) strm).getChannel();
+    return new OutputStreamToChannel(label, strm);
+  }
+
+  /** An InputStreamToChannel which decodes the InputStream with the codec on its internal thread - e.g. decompresses */
+  public static InputStreamToChannel newChannel(String label, InputStream strm, StreamCodec codec) throws IOException {
+    return new InputStreamToChannel(label, codec.decode(strm));
+  }
+
+  /** An OutputStreamToChannel which encodes each batch with the codec on its internal thread - e.g. compresses.
+   *  Each batch is flushed through the codec, see OutputStreamToChannel.setFlushEachBatch.
+   */
+  public static OutputStreamToChannel newChannel(String label, OutputStream strm, StreamCodec codec) throws IOException {
+    OutputStreamToChannel chnl = new OutputStreamToChannel(label, codec.encode(strm));
+    chnl.setFlushEachBatch(true);
+    return chnl;
+  }
+
+  /** A non-blocking SocketChannel for the connected Socket - its own SocketChannel if it has one, else a SocketToSocketChannel */
+  public static SocketChannel newChannel(String label, Socket socket) throws IOException {
+    if(hasNativeChannel(socket)) {
+      SocketChannel chnl = socket.getChannel();
+      chnl.configureBlocking(false);
+      return chnl;
+    }
+    return new SocketToSocketChannel(label, socket);
+  }
+
+  public static boolean hasNativeChannel(InputStream strm)  {
+    return strm != null && strm.getClass() == FileInputStream.class && isSeekable(((FileInputStream) strm).getChannel());
+  }
+  public static boolean hasNativeChannel(OutputStream strm) {
+    return strm != null && strm.getClass() == FileOutputStream.class && isSeekable(((FileOutputStream) strm).getChannel());
+  }
+  public static boolean hasNativeChannel(Socket socket)     { return socket != null && socket.getChannel() != null; }
+
+  /** True if the FileChannel is a regular file - position() throws for a pipe, FIFO, tty or socket */
+  private static boolean isSeekable(FileChannel chnl) {
+    try {
+      chnl.position();
+      return true;
+    } catch(IOException e) {
+      return false;
+    }
+  }
+}
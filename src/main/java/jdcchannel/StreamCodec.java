@@ -0,0 +1,49 @@
+package jdcchannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** A transform applied on the internal threads - e.g. compression, so the CPU cost stays off the caller's thread.
+ *
+ *  The codec wraps the stream the internal thread uses: OutputStreamToChannel writes each coalesced batch to the
+ *  encoding stream and then flushes it, InputStreamToChannel reads from the decoding stream before staging.
+ *  See StreamChannels.newChannel(String, OutputStream, StreamCodec) and newChannel(String, InputStream, StreamCodec).
+ *
+ *  NOTE: The encoding stream must send everything written to it on flush(), so the far side can decode each batch
+ *        without waiting for more - and close() must also close the wrapped stream.
+ */
+public interface StreamCodec {
+
+  OutputStream encode(OutputStream out) throws IOException;
+  InputStream  decode(InputStream in) throws IOException;
+
+  /** zlib compression with java.util.zip - each batch is sent with a SYNC_FLUSH
+   *  @param level - Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9), or Deflater.DEFAULT_COMPRESSION
+   */
+  static StreamCodec deflate(int level) {
+    if((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) throw new IllegalArgumentException("Invalid level: " + level);
+    return new StreamCodec() {
+      public OutputStream encode(OutputStream out) {
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, 8192, true) {
+          public void close() throws IOException {
+            try { super.close(); } finally { deflater.end(); }     // Not ended by close() when passed in
+          }
+        };
+      }
+      public InputStream decode(InputStream in) {
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, 8192) {
+          public void close() throws IOException {
+            try { super.close(); } finally { inflater.end(); }
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,108 @@
+package jdcchannel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Exposes an InputStreamToChannel as a Flow.Publisher of ByteBuffers - one Subscriber only.
+ *
+ *  Data is only taken from the channel while the Subscriber has outstanding demand, so the channel's high-water
+ *  mark bounds the buffering and the InputStream is read only as fast as downstream requests. Each onNext gets a
+ *  new ByteBuffer of up to 'chunkSize' bytes which the Subscriber owns - sized to the data staged at the time.
+ *
+ *  Delivery is driven by the Subscriber's request(n) and by the channel's internal thread when data is staged,
+ *  so nothing polls. onNext / onComplete / onError may run on the internal thread and should not block.
+ */
+public class StreamPublisher implements Flow.Publisher<ByteBuffer> {
+
+  private final InputStreamToChannel  chnl;
+  private final int                   chunkSize;
+  private final AtomicBoolean         subscribed  = new AtomicBoolean(false);
+
+  private static final ByteBuffer     NONE        = ByteBuffer.allocate(0);
+
+  /** @param chunkSize - max bytes passed in each onNext */
+  public StreamPublisher(InputStreamToChannel chnl, int chunkSize) {
+    if(chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be > 0");
+    this.chnl       = chnl;
+    this.chunkSize  = chunkSize;
+  }
+  public StreamPublisher(InputStreamToChannel chnl) {
+    this(chnl, 8192);
+  }
+
+  public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    if(subscriber == null) throw new NullPointerException("subscriber");
+    if(!subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        public void request(long n) { }
+        public void cancel()        { }
+      });
+      subscriber.onError(new IllegalStateException("StreamPublisher allows only a single Subscriber"));
+      return;
+    }
+    Subscription sub = new Subscription(subscriber);
+    chnl.setBlocking(false);
+    chnl.addStateListener(sub.listener);
+    subscriber.onSubscribe(sub);
+    sub.drain();                              // May already be at EOF or had an Exception
+  }
+
+  private class Subscription implements Flow.Subscription {
+    private final Flow.Subscriber<? super ByteBuffer> subscriber;
+    private final Runnable                            listener  = this::drain;
+    private final AtomicLong                          demand    = new AtomicLong(0);
+    private final AtomicInteger                       wip       = new AtomicInteger(0);   // Serializes drain()
+    private volatile boolean                          done      = false;
+
+    Subscription(Flow.Subscriber<? super ByteBuffer> subscriber) { this.subscriber = subscriber; }
+
+    public void request(long n) {
+      if(n <= 0) {
+        finish(new IllegalArgumentException("request must be > 0, got " + n));
+        return;
+      }
+      demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+      drain();
+    }
+
+    public void cancel() {
+      done = true;
+      chnl.removeStateListener(listener);
+    }
+
+    /** Deliver while there is demand and data. Only one thread drains at a time, others just flag more work. */
+    void drain() {
+      if(wip.getAndIncrement() != 0) return;
+      do {
+        try {
+          while(!done && demand.get() > 0) {
+            int        avail  = chnl.inFlight();      // Sized to what is staged, so a small read is not a chunkSize buffer
+            ByteBuffer bb     = avail > 0 ? ByteBuffer.allocate(Math.min(chunkSize, avail)) : NONE;
+            int        n      = chnl.read(bb);       // An empty buffer still picks up EOF or an Exception
+            if(n < 0) {
+              finish(null);
+            } else if(n > 0) {
+              demand.decrementAndGet();
+              subscriber.onNext(bb.flip());
+            } else {
+              break;
+            }
+          }
+          if(!done && demand.get() == 0 && !chnl.isOpen() && chnl.inFlight() < 0) finish(null);    // EOF with no demand
+        } catch(Exception ex) {
+          finish(ex);
+        }
+      } while(wip.decrementAndGet() != 0);
+    }
+
+    private void finish(Throwable ex) {
+      if(done) return;
+      cancel();
+      if(ex == null) subscriber.onComplete();
+      else           subscriber.onError(ex);
+    }
+  }
+}
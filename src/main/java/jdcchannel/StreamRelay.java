@@ -0,0 +1,131 @@
+package jdcchannel;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Moves data from an InputStreamToChannel to an OutputStreamToChannel - e.g. to proxy between two Sockets - by
+ *  handing over the staged chunks themselves, so the data is never copied into a caller's buffer and back.
+ *
+ *  Each link is driven by the state listeners of its two channels: data staged on the input side, or space freed on
+ *  the output side, schedules the link on the Executor, which then moves as many chunks as the output side accepts.
+ *  Nothing polls and no thread is dedicated to a link, so many links share a small pool.
+ *
+ *  Backpressure is shared - a full output queue leaves the chunks in the input queue, which then stops reading its
+ *  InputStream at the high-water mark.
+ *
+ *  NOTE: The input side must use queue staging, not a ByteRing or framing mode. The channels are not closed.
+ */
+public class StreamRelay implements AutoCloseable {
+
+  private final Executor        executor;
+  private final ExecutorService owned;        // Created by this relay, so shut down by close()
+
+  /** Run the links on 'executor' - each run is short and does not block */
+  public StreamRelay(Executor executor) {
+    if(executor == null) throw new IllegalArgumentException("executor must not be null");
+    this.executor = executor;
+    this.owned    = null;
+  }
+  /** Run the links on a pool of 'threads' daemon threads, shut down by close() */
+  public StreamRelay(int threads) {
+    if(threads <= 0) throw new IllegalArgumentException("threads must be > 0");
+    this.owned    = Executors.newFixedThreadPool(threads, PumpThreads.daemon("jdcchannel-relay"));
+    this.executor = owned;
+  }
+
+  /** Relay 'from' to 'to' until EOF on 'from'.
+   *  @return completes with the number of bytes relayed once all of them have been sent to the OutputStream, or
+   *          exceptionally if either channel fails or is closed first. Cancel it to stop relaying.
+   */
+  public CompletableFuture<Long> relay(InputStreamToChannel from, OutputStreamToChannel to) {
+    return new Link(from, to, null).start();
+  }
+
+  /** Proxy between two Sockets - relay each one's input to the other's output. When one direction reaches EOF the
+   *  other Socket's output is shut down once its data has been sent, so the far end sees the EOF too.
+   *  @return completes when both directions have. If one direction fails, the other is stopped with the same Exception.
+   */
+  public CompletableFuture<Void> relay(SocketToSocketChannel a, SocketToSocketChannel b) {
+    CompletableFuture<Long> ab = new Link(a.instrm, b.outputStreamChannel(), b::shutdownOutput).start();
+    CompletableFuture<Long> ba = new Link(b.instrm, a.outputStreamChannel(), a::shutdownOutput).start();
+    ab.whenComplete((n, e) -> { if(e != null) ba.completeExceptionally(e); });
+    ba.whenComplete((n, e) -> { if(e != null) ab.completeExceptionally(e); });
+    return CompletableFuture.allOf(ab, ba);
+  }
+
+  /** Shut down the pool, if created by this relay */
+  public void close() {
+    if(owned != null) owned.shutdown();
+  }
+
+  private interface AtEnd { void run() throws IOException; }
+
+  /** One direction - from an InputStreamToChannel to an OutputStreamToChannel */
+  private class Link implements Runnable {
+    private final InputStreamToChannel    from;
+    private final OutputStreamToChannel   to;
+    private final AtEnd                   atEnd;        // Run once all the data has been sent, null == none
+    private final CompletableFuture<Long> done      = new CompletableFuture<>();
+    private final AtomicInteger           wip       = new AtomicInteger(0);   // Serializes run()
+    private final Runnable                listener  = this::schedule;
+    private long                          relayed   = 0;
+    private boolean                       eof       = false;
+
+    Link(InputStreamToChannel from, OutputStreamToChannel to, AtEnd atEnd) {
+      this.from   = from;
+      this.to     = to;
+      this.atEnd  = atEnd;
+    }
+
+    CompletableFuture<Long> start() {
+      done.whenComplete((n, e) -> {
+        from.removeStateListener(listener);
+        to.removeStateListener(listener);
+      });
+      from.addStateListener(listener);
+      to.addStateListener(listener);
+      schedule();                             // May already have data, or be at EOF
+      return done;
+    }
+
+    /** Run on the Executor, unless already scheduled - then it just runs once more */
+    private void schedule() {
+      if(wip.getAndIncrement() != 0) return;
+      try {
+        executor.execute(this);
+      } catch(RuntimeException e) {
+        wip.set(0);
+        done.completeExceptionally(e);
+      }
+    }
+
+    public void run() {
+      do {
+        try {
+          if(!done.isDone()) move();
+        } catch(Exception e) {
+          done.completeExceptionally(e);
+        }
+      } while(wip.decrementAndGet() != 0);
+    }
+
+    /** Hand over all the chunks the output side accepts. After EOF, finish once the output side has sent them all. */
+    private void move() throws IOException {
+      if(to.hadError()) {                     // Nothing more will be sent
+        done.completeExceptionally(to.getException());
+        return;
+      }
+      int n = 0;
+      while(!eof && (n = from.relayTo(to)) > 0) relayed += n;
+      if(n < 0) eof = true;
+      if(eof && to.inFlight() <= 0) {
+        if(atEnd != null) atEnd.run();
+        done.complete(relayed);
+      }
+    }
+  }
+}
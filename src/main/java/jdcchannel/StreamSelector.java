@@ -0,0 +1,234 @@
+package jdcchannel;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.IllegalSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelectionKey;
+import java.nio.channels.spi.AbstractSelector;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A Selector for SocketToSocketChannels - open with StreamSelectorProvider.provider().openSelector()
+ *
+ *  Readiness is not polled. Each registered channel signals this Selector from its internal threads when data
+ *  is staged (OP_READ) or the output queue drains (OP_WRITE), and a blocked select() re-checks only then.
+ *
+ *  NOTE: OP_CONNECT is accepted but never becomes ready, the Socket is always connected before it is wrapped.
+ */
+public class StreamSelector extends AbstractSelector {
+
+  private final Object            lock        = new Object();       // select() waits on this
+  private volatile boolean        selecting   = false;              // True while a select() is in progress
+  private volatile boolean        signalled   = false;              // A channel changed state during select()
+  private boolean                 wakeupSet   = false;              // wakeup() called - guarded by 'lock'
+
+  private final Set<SelectionKey> keys        = ConcurrentHashMap.newKeySet();
+  private final Set<SelectionKey> selected    = ConcurrentHashMap.newKeySet();
+  private final Set<SelectionKey> publicKeys  = Collections.unmodifiableSet(keys);
+  private final Set<SelectionKey> publicSel   = new RemoveOnlySet<>(selected);
+
+  protected StreamSelector(StreamSelectorProvider provider) {
+    super(provider);
+  }
+
+  public Set<SelectionKey> keys() {
+    if(!isOpen()) throw new ClosedSelectorException();
+    return publicKeys;
+  }
+
+  public Set<SelectionKey> selectedKeys() {
+    if(!isOpen()) throw new ClosedSelectorException();
+    return publicSel;
+  }
+
+  public int selectNow() throws IOException { return doSelect(-1); }
+  public int select() throws IOException    { return doSelect(0); }
+  public int select(long timeout) throws IOException {
+    if(timeout < 0) throw new IllegalArgumentException("timeout must be >= 0");
+    return doSelect(timeout);
+  }
+
+  public Selector wakeup() {
+    synchronized(lock) {
+      wakeupSet = true;
+      lock.notifyAll();
+    }
+    return this;
+  }
+
+  /** Called by the channels (usually from their internal threads) when their readiness may have changed */
+  void signal() {
+    if(selecting) {
+      synchronized(lock) {
+        signalled = true;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  protected SelectionKey register(AbstractSelectableChannel ch, int ops, Object att) {
+    if(!(ch instanceof SocketToSocketChannel)) throw new IllegalSelectorException();
+    if(!isOpen()) throw new ClosedSelectorException();
+
+    Key key = new Key((SocketToSocketChannel) ch, this);
+    key.attach(att);
+    key.interestOps(ops);
+    keys.add(key);
+    key.chnl.addStateListener(key.listener);
+    return key;
+  }
+
+  protected void implCloseSelector() throws IOException {
+    wakeup();
+    synchronized(this) {
+      for(SelectionKey k : keys) {
+        k.cancel();
+        remove((Key) k);
+      }
+      cancelledKeys().clear();
+    }
+  }
+
+  /** @param timeout - -1 == do not wait (selectNow), 0 == wait until something is ready, else max millis to wait */
+  private int doSelect(long timeout) throws IOException {
+    if(!isOpen()) throw new ClosedSelectorException();
+
+    synchronized(this) {
+      long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+      int  n        = 0;
+      try {
+        selecting = true;
+        while(true) {
+          signalled = false;
+          processCancelled();
+          n = updateSelected();
+          if(n > 0 || timeout < 0) break;
+
+          long waitFor = 0;
+          if(timeout > 0) {
+            waitFor = deadline - System.currentTimeMillis();
+            if(waitFor <= 0) break;
+          }
+          boolean woken;
+          try {
+            begin();                  // An interrupt calls wakeup()
+            synchronized(lock) {
+              if(!signalled && !wakeupSet) lock.wait(waitFor);
+              woken = wakeupSet;
+            }
+          } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            woken = true;
+          } finally {
+            end();
+          }
+          if(woken || Thread.currentThread().isInterrupted()) {
+            processCancelled();
+            n = updateSelected();
+            break;
+          }
+        }
+      } finally {
+        selecting = false;
+        synchronized(lock) { wakeupSet = false; }
+      }
+      return n;
+    }
+  }
+
+  /** Update the ready set of each key, return the number of keys whose ready set was updated */
+  private int updateSelected() {
+    int n = 0;
+    for(SelectionKey k : keys) {
+      Key key = (Key) k;
+      if(!key.isValid()) continue;
+      int ready = key.chnl.readyOps() & key.interestOps;
+      if(ready == 0) continue;
+
+      if(selected.contains(key)) {
+        if((ready & ~key.readyOps) != 0) {
+          key.readyOps |= ready;
+          n++;
+        }
+      } else {
+        key.readyOps = ready;
+        selected.add(key);
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private void processCancelled() {
+    Set<SelectionKey> cancelled = cancelledKeys();
+    synchronized(cancelled) {
+      for(SelectionKey k : cancelled) remove((Key) k);
+      cancelled.clear();
+    }
+  }
+
+  private void remove(Key key) {
+    key.chnl.removeStateListener(key.listener);
+    keys.remove(key);
+    selected.remove(key);
+    deregister(key);
+  }
+
+  /****************************************************************************************/
+  /** SelectionKey for a SocketToSocketChannel registered with a StreamSelector           */
+  /****************************************************************************************/
+  static class Key extends AbstractSelectionKey {
+
+    final SocketToSocketChannel chnl;
+    final StreamSelector        sel;
+    final Runnable              listener;
+    volatile int                interestOps = 0;
+    volatile int                readyOps    = 0;
+
+    Key(SocketToSocketChannel chnl, StreamSelector sel) {
+      this.chnl     = chnl;
+      this.sel      = sel;
+      this.listener = sel::signal;
+    }
+
+    public SelectableChannel channel()  { return chnl; }
+    public Selector selector()          { return sel; }
+    public int readyOps() {
+      if(!isValid()) throw new CancelledKeyException();
+      return readyOps;
+    }
+    public int interestOps() {
+      if(!isValid()) throw new CancelledKeyException();
+      return interestOps;
+    }
+    public SelectionKey interestOps(int ops) {
+      if(!isValid()) throw new CancelledKeyException();
+      if((ops & ~chnl.validOps()) != 0) throw new IllegalArgumentException("Invalid ops: " + ops);
+      interestOps = ops;
+      sel.signal();                   // Let a select() in progress re-check with the new interest set
+      return this;
+    }
+  }
+
+  /** The selected-key set allows removal but not addition */
+  private static class RemoveOnlySet<E> extends AbstractSet<E> {
+    private final Set<E> set;
+
+    RemoveOnlySet(Set<E> set)             { this.set = set; }
+
+    public int size()                     { return set.size(); }
+    public Iterator<E> iterator()         { return set.iterator(); }
+    public boolean contains(Object o)     { return set.contains(o); }
+    public boolean remove(Object o)       { return set.remove(o); }
+    public void clear()                   { set.clear(); }
+    public boolean add(E e)               { throw new UnsupportedOperationException(); }
+  }
+}
@@ -0,0 +1,44 @@
+package jdcchannel;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+
+/** SelectorProvider for the SocketToSocketChannel. The JDK Selector can only handle its own native channels, so
+ *  a SocketToSocketChannel must be registered with a StreamSelector opened from this provider.
+ *
+ *  The internal InputStream and OutputStream threads signal the StreamSelector whenever data is staged or drained,
+ *  so a single thread can wait in select() for any number of channels without polling.
+ *
+ *  Only openSelector() is supported - the other channel types are native and should come from the JDK provider.
+ */
+public class StreamSelectorProvider extends SelectorProvider {
+
+  private static final StreamSelectorProvider shared = new StreamSelectorProvider();
+
+  /** The shared instance - used by SocketToSocketChannel unless another StreamSelectorProvider is given */
+  public static StreamSelectorProvider provider() { return shared; }
+
+  /** Return 'provider' if it is a StreamSelectorProvider, else the shared instance */
+  public static StreamSelectorProvider of(SelectorProvider provider) {
+    return provider instanceof StreamSelectorProvider ? (StreamSelectorProvider) provider : shared;
+  }
+
+  protected StreamSelectorProvider() { }
+
+  public AbstractSelector openSelector() throws IOException { return new StreamSelector(this); }
+
+  /************************* Methods NOT Supported **********************/
+  private void throwNYI() { throw new UnsupportedOperationException("Only openSelector() is supported - use SelectorProvider.provider() for native channels"); }
+
+  public DatagramChannel openDatagramChannel() throws IOException                       { throwNYI(); return null; }
+  public DatagramChannel openDatagramChannel(ProtocolFamily family) throws IOException  { throwNYI(); return null; }
+  public Pipe openPipe() throws IOException                                             { throwNYI(); return null; }
+  public ServerSocketChannel openServerSocketChannel() throws IOException               { throwNYI(); return null; }
+  public SocketChannel openSocketChannel() throws IOException                           { throwNYI(); return null; }
+}
@@ -0,0 +1,94 @@
+package jdcchannel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Exposes an OutputStreamToChannel as a Flow.Subscriber of ByteBuffers.
+ *
+ *  Requests 'prefetch' buffers up front, then one more each time a buffer has been completely accepted by the
+ *  channel - so the upstream Publisher only produces as fast as the OutputStream absorbs the data, and at most
+ *  'prefetch' buffers plus the channel's maxInFlight are ever held.
+ *
+ *  A buffer the channel cannot take yet is retried from the channel's internal thread when its queue drains, so
+ *  nothing polls. The ByteBuffers must not be changed by the Publisher after onNext.
+ *
+ *  completion() completes once onComplete has been received and all of the data is queued to the channel, or
+ *  completes exceptionally on onError or a write failure. The channel is not closed - that is up to the caller.
+ */
+public class StreamSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+  private final OutputStreamToChannel             chnl;
+  private final int                               prefetch;
+  private final ConcurrentLinkedQueue<ByteBuffer> pending     = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger                     wip         = new AtomicInteger(0);   // Serializes drain()
+  private final Runnable                          listener    = this::drain;
+  private final CompletableFuture<Void>           completion  = new CompletableFuture<>();
+  private volatile Flow.Subscription              sub         = null;
+  private volatile boolean                        upstreamDone= false;
+
+  /** @param prefetch - number of ByteBuffers requested ahead of what the channel has accepted */
+  public StreamSubscriber(OutputStreamToChannel chnl, int prefetch) {
+    if(prefetch <= 0) throw new IllegalArgumentException("prefetch must be > 0");
+    this.chnl     = chnl;
+    this.prefetch = prefetch;
+  }
+  public StreamSubscriber(OutputStreamToChannel chnl) {
+    this(chnl, 4);
+  }
+
+  /** Completes when all of the data from the Publisher has been queued to the channel */
+  public CompletableFuture<Void> completion() { return completion; }
+
+  public void onSubscribe(Flow.Subscription subscription) {
+    if(sub != null) {
+      subscription.cancel();                  // Only one subscription
+      return;
+    }
+    sub = subscription;
+    chnl.setBlocking(false);
+    chnl.addStateListener(listener);
+    subscription.request(prefetch);
+  }
+
+  public void onNext(ByteBuffer item) {
+    pending.add(item);
+    drain();
+  }
+
+  public void onError(Throwable ex) {
+    upstreamDone = true;
+    chnl.removeStateListener(listener);
+    completion.completeExceptionally(ex);
+  }
+
+  public void onComplete() {
+    upstreamDone = true;
+    drain();
+  }
+
+  /** Move pending buffers into the channel. Only one thread drains at a time, others just flag more work. */
+  private void drain() {
+    if(wip.getAndIncrement() != 0) return;
+    do {
+      try {
+        ByteBuffer bb;
+        while(!completion.isDone() && (bb = pending.peek()) != null) {
+          if(bb.hasRemaining()) chnl.write(bb);
+          if(bb.hasRemaining()) break;          // Retried when the channel's queue drains
+          pending.poll();
+          if(!upstreamDone) sub.request(1);
+        }
+        if(upstreamDone && pending.isEmpty() && !completion.isDone()) {
+          chnl.removeStateListener(listener);
+          completion.complete(null);
+        }
+      } catch(Exception ex) {
+        chnl.removeStateListener(listener);
+        if(completion.completeExceptionally(ex)) sub.cancel();
+      }
+    } while(wip.decrementAndGet() != 0);
+  }
+}
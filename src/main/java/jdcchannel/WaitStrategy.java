@@ -0,0 +1,58 @@
+package jdcchannel;
+
+import java.util.concurrent.locks.LockSupport;
+
+/** How an internal thread waits while it has nothing to do - selectable per channel with setWaitStrategy(...).
+ *
+ *  idle(n) is called repeatedly, n == 1, 2, 3 ... for consecutive idle checks, and returns when the caller should
+ *  check again. The strategies here keep no state, so one instance may be shared by many channels.
+ *
+ *  - busySpin()          - lowest latency, burns a core per waiting thread
+ *  - spinYield(spins)    - spin, then Thread.yield() - low latency, gives way to other runnable threads
+ *  - backoff(min, max)   - parkNanos doubling from min to max - cheap for idle bulk channels, nanosecond granularity
+ *  - blocking(maxNanos)  - park until un-parked by the channel, or maxNanos as a safety net
+ *
+ *  The channels un-park their thread whenever there is work for it (data written, queue drained, closed), so a
+ *  parking strategy wakes at once. The exception is an InputStream read which returns 0 bytes - nothing un-parks
+ *  the thread then, so blocking() should not be used for an InputStream which may do that.
+ *  Delay is also a WaitStrategy - millisecond sleeps, as used by the channels before. Its idle(n) keeps no state
+ *  either, so one Delay may be shared - but not together with its own delay(), which does.
+ */
+public interface WaitStrategy {
+
+  /** Wait a while - 'n' is the number of consecutive idle checks, starting at 1 */
+  void idle(int n);
+
+  static WaitStrategy busySpin() {
+    return n -> Thread.onSpinWait();
+  }
+
+  /** Spin for 'spins' checks, then yield */
+  static WaitStrategy spinYield(int spins) {
+    if(spins < 0) throw new IllegalArgumentException("spins must be >= 0");
+    return n -> {
+      if(n <= spins) Thread.onSpinWait();
+      else Thread.yield();
+    };
+  }
+
+  /** parkNanos for minNanos, doubling each time up to maxNanos */
+  static WaitStrategy backoff(long minNanos, long maxNanos) {
+    if(minNanos <= 0) throw new IllegalArgumentException("minNanos must be > 0");
+    if(maxNanos < minNanos) throw new IllegalArgumentException("maxNanos must be >= minNanos");
+    return n -> {
+      int  shift = Math.min(n - 1, Long.numberOfLeadingZeros(minNanos) - 1);
+      LockSupport.parkNanos(Math.min(minNanos << shift, maxNanos));
+    };
+  }
+
+  /** Park until un-parked, or maxNanos at most */
+  static WaitStrategy blocking(long maxNanos) {
+    if(maxNanos <= 0) throw new IllegalArgumentException("maxNanos must be > 0");
+    return n -> LockSupport.parkNanos(maxNanos);
+  }
+  /** Park until un-parked, or 1 second at most */
+  static WaitStrategy blocking() {
+    return blocking(1_000_000_000L);
+  }
+}
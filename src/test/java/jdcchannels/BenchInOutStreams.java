@@ -0,0 +1,136 @@
+package jdcchannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/** Throughput benchmark of InputStreamToChannel and OutputStreamToChannel - run with main(), like the tests.
+ *  A quick check without JMH - InputStreamBench and OutputStreamBench in the benchmarks module measure the same
+ *  matrix with JMH, see the README.
+ *
+ *  For each combination of consumer buffer size, rdBfrSz / maxWriteSz, maxInFlight and Delay settings it moves a
+ *  fixed amount of data through the channel, and prints bytes/sec, ops/sec (channel read / write calls), ns/op and
+ *  bytes allocated per byte moved. Each combination is run once to warm up, then measured.
+ *
+ *  Args: [quick] - a smaller matrix and less data, for a fast check
+ *
+ *  The source InputStream returns 0 bytes every 1024th read, so the Delay settings are exercised. Delay only applies
+ *  to the Input side - the Output thread parks until written to - so the Output side is run once, without it. The
+ *  channels are in blocking mode, so the consumer never polls. Allocation is measured per live thread (com.sun.management), taken
+ *  before the channel is closed, so it includes the internal thread.
+ */
+public class BenchInOutStreams {
+
+  private static final int[]  consumerSizes = { 1, 64, 4096, 65536, 1 << 20 };
+  private static final int[]  pumpSizes     = { 1024, 8192, 65536 };
+  private static final int[]  inFlights     = { 65536, 1 << 20 };
+  private static final int[][] delays       = { { 0, 0 }, { 8, 256 } };    // sleepStep, sleepMax - 0 == no Delay
+
+  private static boolean quick = false;
+
+  public static void main(String[] args) throws Exception {
+    quick = args.length > 0 && args[0].equals("quick");
+
+    ln(String.format("%-6s %8s %7s %9s %6s %12s %12s %10s %10s", "Side", "Consumer", "Pump", "InFlight", "Delay", "MB/s", "ops/s", "ns/op", "alloc/B"));
+    for(int consumer : quick ? new int[]{ 64, 65536 } : consumerSizes)
+      for(int pump : quick ? new int[]{ 8192 } : pumpSizes)
+        for(int inFlight : quick ? new int[]{ 65536 } : inFlights) {
+          for(int[] delay : delays) {
+            benchInput(consumer, pump, inFlight, delay, false);
+            print("Input", consumer, pump, inFlight, delay, benchInput(consumer, pump, inFlight, delay, true));
+          }
+          benchOutput(consumer, pump, inFlight, false);
+          print("Output", consumer, pump, inFlight, null, benchOutput(consumer, pump, inFlight, true));
+        }
+    System.exit(0);
+  }
+
+  /** Bytes to move for a run - enough calls for small buffers, enough data for large ones */
+  private static long totalBytes(int consumer) {
+    long amt = Math.max(4L << 20, Math.min(256L << 20, (long) consumer * 200_000));
+    return quick ? amt / 4 : amt;
+  }
+
+  /** Returns { nanos, ops, bytes, allocated } */
+  private static long[] benchInput(int consumer, int pump, int inFlight, int[] delay, boolean measure) throws IOException {
+    long                  total = totalBytes(consumer) / (measure ? 1 : 4);
+    InputStreamToChannel  chnl  = new InputStreamToChannel("Bench In", new Source(), inFlight, pump, delay[0], delay[1], true);
+    ByteBuffer            bb    = ByteBuffer.allocate(consumer);
+    chnl.setBlocking(true);
+
+    long alloc0 = allocated();
+    long t0     = System.nanoTime();
+    long ops    = 0;
+    long moved  = 0;
+    while(moved < total) {
+      bb.clear();
+      moved += chnl.read(bb);
+      ops++;
+    }
+    long nanos  = System.nanoTime() - t0;
+    long alloc  = allocated() - alloc0;
+    chnl.close();
+    return new long[]{ nanos, ops, moved, alloc };
+  }
+
+  /** Returns { nanos, ops, bytes, allocated } - timed until the OutputStream has received all of the data */
+  private static long[] benchOutput(int consumer, int pump, int inFlight, boolean measure) throws IOException {
+    long                  total = totalBytes(consumer) / (measure ? 1 : 4);
+    Sink                  sink  = new Sink();
+    OutputStreamToChannel chnl  = new OutputStreamToChannel("Bench Out", sink, inFlight, pump);
+    ByteBuffer            bb    = ByteBuffer.allocate(consumer);
+    chnl.setBlocking(true);
+
+    long alloc0 = allocated();
+    long t0     = System.nanoTime();
+    long ops    = 0;
+    for(long moved = 0; moved < total; moved += consumer) {
+      bb.clear();
+      chnl.write(bb);
+      ops++;
+    }
+    while(sink.received < ops * consumer) Thread.onSpinWait();
+    long nanos  = System.nanoTime() - t0;
+    long alloc  = allocated() - alloc0;
+    chnl.close();
+    return new long[]{ nanos, ops, sink.received, alloc };
+  }
+
+  /** Bytes allocated so far by all live threads */
+  private static long allocated() {
+    com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long total = 0;
+    for(long n : mx.getThreadAllocatedBytes(mx.getAllThreadIds())) if(n > 0) total += n;
+    return total;
+  }
+
+  private static void print(String side, int consumer, int pump, int inFlight, int[] delay, long[] r) {
+    double secs = r[0] / 1e9;
+    ln(String.format("%-6s %8d %7d %9d %6s %12.1f %12.0f %10.1f %10.3f", side, consumer, pump, inFlight,
+                     delay == null ? "-" : delay[0] == 0 ? "none" : delay[0] + "/" + delay[1],
+                     r[2] / secs / (1 << 20), r[1] / secs, (double) r[0] / r[1], (double) r[3] / r[2]));
+  }
+
+  private static void ln(String s) { System.out.println(s); }
+
+  /** Endless InputStream - fills the array, except every 1024th read returns 0 bytes */
+  private static class Source extends InputStream {
+    private int nReads = 0;
+
+    public int read() { return 'x'; }
+    public int read(byte[] b, int off, int len) {
+      if((++nReads & 1023) == 0) return 0;
+      return len;             // Contents do not matter
+    }
+  }
+
+  /** OutputStream which only counts what it receives */
+  private static class Sink extends OutputStream {
+    volatile long received = 0;
+
+    public void write(int b)                        { received++; }
+    public void write(byte[] b, int off, int len)   { received += len; }
+  }
+}
@@ -0,0 +1,255 @@
+package jdcchannel;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Loopback harness - runs the same echo and bulk-transfer workloads over SocketToSocketChannel and a native NIO
+ *  SocketChannel, side by side. Only the loopback interface is used, so no network access is needed.
+ *
+ *  - Echo: every connection sends 'msgSize' byte messages which the server side echoes back, one at a time.
+ *          Reports p50 / p99 / p999 / max round-trip latency over all connections, and messages/sec.
+ *  - Bulk: every connection sends 'bulkMB' in 64 KB writes, the server side counts them. Reports MB/s.
+ *  - Footprint: the threads and heap added by opening all the connections (both ends), before any data is sent.
+ *               Taken once every thread of the previous workload - including the channels' internal threads - ended.
+ *
+ *  Both sides of each connection use blocking mode with a thread per connection end, so the comparison is of the
+ *  channels and not of a selector loop.
+ *
+ *  Args: [connections (16)] [messages per connection (2000)] [bulk MB per connection (16)]
+ */
+public class BenchSocketChannel {
+
+  private static final int msgSize  = 64;
+  private static final int bulkSize = 64 * 1024;
+
+  private final int connections;
+  private final int messages;
+  private final int bulkMB;
+  private final List<Thread> workers = new ArrayList<>();
+  private static final List<Thread> pumps = new ArrayList<>();    // Internal threads of the stream channels
+
+  public static void main(String[] args) throws Exception {
+    InOutCommon.setDefaultThreadFactory(r -> {
+      Thread t = new Thread(r);
+      synchronized(pumps) { pumps.add(t); }
+      return t;
+    });
+    BenchSocketChannel bench = new BenchSocketChannel(args.length > 0 ? Integer.parseInt(args[0]) : 16,
+                                                      args.length > 1 ? Integer.parseInt(args[1]) : 2000,
+                                                      args.length > 2 ? Integer.parseInt(args[2]) : 16);
+    ln(String.format("%-8s %-6s %6s %10s %10s %10s %10s %10s %10s %8s %10s", "Channel", "Load", "Conns",
+                     "p50 us", "p99 us", "p999 us", "max us", "msgs/s", "MB/s", "Threads", "Heap KB"));
+    for(int i=0; i<2; i++) {                 // First pass is warm-up
+      boolean print = i == 1;
+      bench.run("Native", false, print);
+      bench.run("Stream", true, print);
+    }
+    System.exit(0);
+  }
+
+  public BenchSocketChannel(int connections, int messages, int bulkMB) {
+    this.connections  = connections;
+    this.messages     = messages;
+    this.bulkMB       = bulkMB;
+  }
+
+  private void run(String label, boolean stream, boolean print) throws Exception {
+    long[] footprint = new long[2];
+    long[] latencies = new long[connections * messages];
+    double[] echo    = echo(stream, latencies, footprint);
+    double   mbSec   = bulk(stream);
+    if(!print) return;
+
+    Arrays.sort(latencies);
+    ln(String.format("%-8s %-6s %6d %10.1f %10.1f %10.1f %10.1f %10.0f %10s %8d %10d", label, "Echo", connections,
+                     pct(latencies, 50) / 1e3, pct(latencies, 99) / 1e3, pct(latencies, 99.9) / 1e3,
+                     latencies[latencies.length - 1] / 1e3, echo[0], "", footprint[0], footprint[1] / 1024));
+    ln(String.format("%-8s %-6s %6d %10s %10s %10s %10s %10s %10.1f", label, "Bulk", connections, "", "", "", "", "", mbSec));
+  }
+
+  /** Echo workload - fills 'latencies' with the round-trip nanos, 'footprint' with { threads, heap } added.
+   *  Returns { messages/sec }
+   */
+  private double[] echo(boolean stream, long[] latencies, long[] footprint) throws Exception {
+    long threads0 = ManagementFactory.getThreadMXBean().getThreadCount();
+    long heap0    = usedHeap();
+
+    List<SocketChannel[]> pairs = connect(stream);
+    footprint[0] = ManagementFactory.getThreadMXBean().getThreadCount() - threads0;
+    footprint[1] = usedHeap() - heap0;
+
+    CountDownLatch  done    = new CountDownLatch(connections);
+    AtomicLong      errors  = new AtomicLong(0);
+    long            t0      = System.nanoTime();
+    for(int c=0; c<connections; c++) {
+      SocketChannel[] pair  = pairs.get(c);
+      int             base  = c * messages;
+      start(() -> {                           // Server - echo until EOF
+        ByteBuffer bb = ByteBuffer.allocate(msgSize);
+        while(pair[1].read(bb) >= 0) {
+          bb.flip();
+          while(bb.hasRemaining()) pair[1].write(bb);
+          bb.clear();
+        }
+      }, errors, null);
+      start(() -> {                           // Client - one message at a time
+        ByteBuffer out = ByteBuffer.allocate(msgSize);
+        ByteBuffer in  = ByteBuffer.allocate(msgSize);
+        for(int m=0; m<messages; m++) {
+          out.clear();
+          in.clear();
+          long t = System.nanoTime();
+          while(out.hasRemaining()) pair[0].write(out);
+          while(in.hasRemaining()) if(pair[0].read(in) < 0) throw new IOException("Unexpected EOF");
+          latencies[base + m] = System.nanoTime() - t;
+        }
+      }, errors, done);
+    }
+    done.await();
+    long nanos = System.nanoTime() - t0;
+    close(pairs);
+    joinWorkers();
+    if(errors.get() > 0) throw new IOException("Echo had " + errors.get() + " errors");
+    return new double[]{ (double) connections * messages / (nanos / 1e9) };
+  }
+
+  /** Bulk workload - returns MB/s over all connections, timed until the last byte is received */
+  private double bulk(boolean stream) throws Exception {
+    List<SocketChannel[]> pairs = connect(stream);
+    long            total   = (long) bulkMB << 20;
+    CountDownLatch  done    = new CountDownLatch(connections);
+    AtomicLong      errors  = new AtomicLong(0);
+    long            t0      = System.nanoTime();
+    for(SocketChannel[] pair : pairs) {
+      start(() -> {                           // Server - count until it has all of the data
+        ByteBuffer bb   = ByteBuffer.allocate(bulkSize);
+        long       rcvd = 0;
+        int        n;
+        while(rcvd < total && (n = pair[1].read(bb)) >= 0) {
+          rcvd += n;
+          bb.clear();
+        }
+        if(rcvd != total) throw new IOException("Received " + rcvd + " of " + total);
+      }, errors, done);
+      start(() -> {                           // Client
+        ByteBuffer bb = ByteBuffer.allocate(bulkSize);
+        for(long sent = 0; sent < total; sent += bulkSize) {
+          bb.clear();
+          while(bb.hasRemaining()) pair[0].write(bb);
+        }
+      }, errors, null);
+    }
+    done.await();
+    long nanos = System.nanoTime() - t0;
+    close(pairs);
+    joinWorkers();
+    if(errors.get() > 0) throw new IOException("Bulk had " + errors.get() + " errors");
+    return (double) connections * bulkMB / (nanos / 1e9);
+  }
+
+  /** Open 'connections' loopback connections - { client, server } channels, in blocking mode */
+  private List<SocketChannel[]> connect(boolean stream) throws IOException {
+    List<SocketChannel[]> pairs = new ArrayList<>();
+    if(stream) {
+      try(ServerSocket srvr = new ServerSocket(0, connections, InetAddress.getLoopbackAddress())) {
+        for(int c=0; c<connections; c++) {
+          Socket client = new Socket(srvr.getInetAddress(), srvr.getLocalPort());
+          Socket server = srvr.accept();
+          client.setTcpNoDelay(true);
+          server.setTcpNoDelay(true);
+          SocketChannel[] pair = { new SocketToSocketChannel("Bench Client " + c, client),
+                                   new SocketToSocketChannel("Bench Server " + c, server) };
+          pair[0].configureBlocking(true);
+          pair[1].configureBlocking(true);
+          pairs.add(pair);
+        }
+      }
+    } else {
+      try(ServerSocketChannel srvr = ServerSocketChannel.open()) {
+        srvr.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), connections);
+        for(int c=0; c<connections; c++) {
+          SocketChannel client = SocketChannel.open(srvr.getLocalAddress());
+          SocketChannel server = srvr.accept();
+          client.socket().setTcpNoDelay(true);
+          server.socket().setTcpNoDelay(true);
+          pairs.add(new SocketChannel[]{ client, server });
+        }
+      }
+    }
+    return pairs;
+  }
+
+  /** Wait for the threads of the last workload to end, and the internal threads of its closed channels, so they
+   *  are not counted in the next footprint */
+  private void joinWorkers() throws InterruptedException {
+    for(Thread t : workers) t.join(5000);
+    workers.clear();
+    List<Thread> ended;
+    synchronized(pumps) {
+      ended = new ArrayList<>(pumps);
+      pumps.clear();
+    }
+    for(Thread t : ended) t.join(5000);
+  }
+
+  private static void close(List<SocketChannel[]> pairs) throws IOException {
+    for(SocketChannel[] pair : pairs) {
+      pair[0].close();
+      pair[1].close();
+    }
+  }
+
+  private interface Work { void run() throws Exception; }
+
+  /** Run 'work' on a new daemon thread - count any Exception in 'errors', count down 'done' (if given) at the end */
+  private void start(Work work, AtomicLong errors, CountDownLatch done) {
+    Thread t = new Thread(() -> {
+      try {
+        work.run();
+      } catch(Exception ex) {
+        if(done != null) {                    // Exceptions on the echo server side are expected when closed
+          errors.incrementAndGet();
+          ln("Exception -- " + ex.toString());
+        }
+      } finally {
+        if(done != null) done.countDown();
+      }
+    });
+    t.setDaemon(true);
+    t.start();
+    workers.add(t);
+  }
+
+  /** Heap in use after garbage collection - repeated until it has not shrunk twice in a row, since closed Sockets
+   *  are only freed once the Cleaner thread has run after a collection */
+  private static long usedHeap() throws InterruptedException {
+    long used   = Long.MAX_VALUE;
+    int  stable = 0;
+    for(int i=0; i<40 && stable < 2; i++) {
+      System.gc();
+      Thread.sleep(50);
+      long now = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+      stable   = now < used ? 0 : stable + 1;
+      used     = Math.min(used, now);
+    }
+    return used;
+  }
+
+  private static long pct(long[] sorted, double pct) {
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * pct / 100.0) - 1)];
+  }
+
+  private static void ln(String s) { System.out.println(s); }
+}
@@ -1,10 +1,27 @@
 package jdcchannel;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.nio.*;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ReadPendingException;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /** Fake some InputStreams and OutputStreams and pass it through InputStreamToChannel and OutputStreamToChannel */
 public class TestInOutStreams {
@@ -15,16 +32,34 @@ public class TestInOutStreams {
 
     TestInOutStreams tst = new TestInOutStreams();
     tst.initTest1();
-    tst.runTest1(new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024}, -1);
-    tst.runTest1(new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024}, 512);
-    tst.runTest2("        Fibonacci, no Delay", new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024}, Delay.noop);
-    tst.runTest2("  Fibonacci, standard Delay", new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024, 37}, new Delay());
-    tst.runTest2(" Fibonacci+, standard Delay", new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024, 37, 1, 2,  3, 5, 8}, new Delay());
-    tst.runTest2("Fibonacci++, standard Delay", new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024, 37, 1, 2,  0, 3, 5, 8, 13, 21, 931}, new Delay());
-    System.exit(0);
+    boolean ok = true;
+    ok &= tst.runTest1(new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024}, -1, false);
+    ok &= tst.runTest1(new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024}, 512, false);
+    ok &= tst.runTest1(new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024}, -1, true);
+    ok &= tst.runTest2("        Fibonacci, no Delay", new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024}, Delay.noop, false);
+    ok &= tst.runTest2("  Fibonacci, standard Delay", new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024, 37}, new Delay(), false);
+    ok &= tst.runTest2(" Fibonacci+, standard Delay", new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024, 37, 1, 2,  3, 5, 8}, new Delay(), false);
+    ok &= tst.runTest2("Fibonacci++, standard Delay", new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024, 37, 1, 2,  0, 3, 5, 8, 13, 21, 931}, new Delay(), false);
+    ok &= tst.runTest2("   Fibonacci++, ByteRing", new int[]{ 1, 2, 3, 5, 8, 13, 21, 1024, 37, 1, 2,  0, 3, 5, 8, 13, 21, 931, 4000}, Delay.noop, true);
+    ok &= tst.runTest3();
+    ok &= tst.runTest4();
+    ok &= tst.runTest5();
+    ok &= tst.runTest6();
+    ok &= tst.runTest7();
+    ok &= tst.runTest8();
+    ok &= tst.runTest9();
+    ok &= tst.runTest10();
+    ok &= tst.runTest11();
+    ok &= tst.runTest12();
+    ok &= tst.runTest13();
+    ok &= tst.runTest14();
+    ok &= tst.runTest15();
+    ok &= tst.runTest16();
+    ok &= tst.runTest17();
+    System.exit(ok ? 0 : 1);            // Non-zero if any test failed, for the build
   }
 
-  private boolean runTest1(int[] blockSizes, int EOFAfter){
+  private boolean runTest1(int[] blockSizes, int EOFAfter, boolean ring){
     boolean    rslt = true;
     ByteBuffer bb;
     int        index = 0;
@@ -32,7 +67,7 @@ public class TestInOutStreams {
     Delay      delay = new Delay();
     boolean    EOF = false;
 
-    ReadableByteChannel chnl = new InputStreamToChannel("Test1 InStrm", new FakeIn(test1Data, EOFAfter), 31, 1024);
+    ReadableByteChannel chnl = new InputStreamToChannel("Test1 InStrm", new FakeIn(test1Data, EOFAfter), 31, 1024, 8, 256, true, ring, null);
     for(int i=0; i<blockSizes.length; i++) {
       int sz = blockSizes[i];
       if (EOF)
@@ -76,19 +111,19 @@ public class TestInOutStreams {
         }
       }
     }
-    ln("Test1 " + rslt);
+    ln("Test1 " + (ring ? "ByteRing " : "") + rslt);
     return rslt;
   }
 
   /** Write the various blocks to the output channel */
-  private boolean runTest2(String label, int[] blockSizes, Delay delay) {
+  private boolean runTest2(String label, int[] blockSizes, Delay delay, boolean ring) {
     boolean rslt  = true;
     int     index = 0;
     ByteBuffer bb = ByteBuffer.allocate(4096 * 8);
 
     FakeOut out = new FakeOut(delay);
 
-    WritableByteChannel chnl = new OutputStreamToChannel("Test2", out);
+    WritableByteChannel chnl = new OutputStreamToChannel("Test2", out, 4096, 1024, 8, 256, true, ring, null);
 
     int amtWritten = 0;
 
@@ -121,6 +156,866 @@ public class TestInOutStreams {
     ln("Test2 -- " + label + ": " + rslt + " NumBlocks: " + blockSizes.length + " TotalData: " + amtWritten);
     return rslt;
   }
+  /** File streams should get their own FileChannel from StreamChannels, not a thread and queue */
+  private boolean runTest3() {
+    boolean rslt = true;
+    try {
+      File tmp = File.createTempFile("jdcchannel", ".tmp");
+      tmp.deleteOnExit();
+
+      try(WritableByteChannel out = StreamChannels.newChannel("Test3 Out", new FileOutputStream(tmp))) {
+        if(!(out instanceof FileChannel)) {
+          ln("Expected a FileChannel for a FileOutputStream, got " + out.getClass().getName());
+          rslt = false;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(test1Data);
+        while(bb.hasRemaining()) out.write(bb);
+      }
+      try(ReadableByteChannel in = StreamChannels.newChannel("Test3 In", new FileInputStream(tmp))) {
+        if(!(in instanceof FileChannel)) {
+          ln("Expected a FileChannel for a FileInputStream, got " + in.getClass().getName());
+          rslt = false;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(test1Data.length);
+        while(bb.hasRemaining() && in.read(bb) >= 0) { }
+        if(!bb.flip().equals(ByteBuffer.wrap(test1Data))) {
+          ln("Data read from the FileChannel does not match");
+          rslt = false;
+        }
+      }
+      if(StreamChannels.hasNativeChannel(new FakeIn(test1Data, -1))) {
+        ln("FakeIn should not have a native channel");
+        rslt = false;
+      }
+
+      // A FIFO (where mkfifo exists) is wrapped, since a FileChannel read of it would block
+      File fifo = new File(tmp.getPath() + ".fifo");
+      fifo.deleteOnExit();
+      if(new ProcessBuilder("mkfifo", fifo.getPath()).start().waitFor() == 0) {
+        try(RandomAccessFile peer = new RandomAccessFile(fifo, "rw");        // Opens without waiting for a reader
+            FileInputStream  fis  = new FileInputStream(fifo);
+            ReadableByteChannel in = StreamChannels.newChannel("Test3 FIFO", fis)) {
+          if(in instanceof FileChannel || in.read(ByteBuffer.allocate(16)) != 0) {
+            ln("Expected a non-blocking wrapper for a FIFO, got " + in.getClass().getName());
+            rslt = false;
+          }
+        }
+      }
+    } catch(IOException | InterruptedException ex) {
+      ln("Test3 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test3 -- StreamChannels: " + rslt);
+    return rslt;
+  }
+
+  /** Blocking mode - no Delay loops, read/write never return 0, and the timed waits expire */
+  private boolean runTest4() {
+    boolean rslt = true;
+    try {
+      InputStreamToChannel in = new InputStreamToChannel("Test4 In", new FakeIn(test1Data, 4000), 31, 1024);
+      in.setBlocking(true);
+      ByteBuffer bb = ByteBuffer.allocate(test1Data.length);
+      int n;
+      while((n = in.read(bb)) > 0) { }
+      if(n == 0 || bb.position() != 4000 || !bb.flip().equals(ByteBuffer.wrap(test1Data, 0, 4000))) {
+        ln("Blocking read returned " + n + " after " + bb.limit() + " bytes");
+        rslt = false;
+      }
+
+      FakeOut out  = new FakeOut(Delay.noop);
+      OutputStreamToChannel chnl = new OutputStreamToChannel("Test4 Out", out, 64, 32);
+      chnl.setBlocking(true);
+      for(int i=0; i<test1Data.length; i+=100) {
+        bb = ByteBuffer.wrap(test1Data, i, Math.min(100, test1Data.length - i));
+        if(chnl.write(bb) == 0 || bb.hasRemaining()) {
+          ln("Blocking write did not accept all of the data");
+          rslt = false;
+        }
+      }
+      rslt &= out.dataMatches(test1Data, test1Data.length);
+
+      PipedInputStream     pipe = new PipedInputStream();
+      PipedOutputStream    src  = new PipedOutputStream(pipe);
+      InputStreamToChannel idle = new InputStreamToChannel("Test4 Idle", pipe);
+      if(idle.awaitReadable(50, TimeUnit.MILLISECONDS)) {
+        ln("awaitReadable should time out with no data");
+        rslt = false;
+      }
+      src.write(42);
+      src.flush();
+      if(!idle.awaitReadable(5, TimeUnit.SECONDS)) {
+        ln("awaitReadable timed out with data");
+        rslt = false;
+      }
+    } catch(IOException | InterruptedException ex) {
+      ln("Test4 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test4 -- Blocking: " + rslt);
+    return rslt;
+  }
+
+  /** AsynchronousByteChannel - the writes and reads complete from the internal threads, nobody polls */
+  private boolean runTest5() {
+    boolean rslt = true;
+    try {
+      PipedInputStream   pipe  = new PipedInputStream(256);
+      PipedOutputStream  src   = new PipedOutputStream(pipe);
+      AsyncStreamChannel async = new AsyncStreamChannel(new InputStreamToChannel("Test5 In", pipe, 64, 32),
+                                                        new OutputStreamToChannel("Test5 Out", src, 64, 32));
+      ByteBuffer outBfr = ByteBuffer.wrap(test1Data, 0, 1000);
+      ByteBuffer inBfr  = ByteBuffer.allocate(1000);
+      CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+      CompletionHandler<Integer, ByteBuffer> reader = new CompletionHandler<Integer, ByteBuffer>() {
+        public void completed(Integer n, ByteBuffer bb) {
+          if(n < 0 || !bb.hasRemaining()) done.complete(n >= 0);
+          else async.read(bb, bb, this);
+        }
+        public void failed(Throwable ex, ByteBuffer bb) { done.completeExceptionally(ex); }
+      };
+      async.read(inBfr, inBfr, reader);
+
+      while(outBfr.hasRemaining()) async.write(outBfr).get(5, TimeUnit.SECONDS);
+
+      if(!done.get(5, TimeUnit.SECONDS) || !inBfr.flip().equals(ByteBuffer.wrap(test1Data, 0, 1000))) {
+        ln("Data read asynchronously does not match");
+        rslt = false;
+      }
+
+      // close() from a completion run on the writer thread starts the close rather than wait for that thread
+      OutputStreamToChannel slow   = new OutputStreamToChannel("Test5 Slow", new OutputStream() {
+        public void write(int b) { }
+        public void write(byte[] b, int off, int len) { Delay.threadSleep(5); }
+      }, 64, 32);
+      AsyncStreamChannel        wrOnly = new AsyncStreamChannel(null, slow);
+      CompletableFuture<Thread> closer = new CompletableFuture<>();
+      wrOnly.write(ByteBuffer.wrap(test1Data, 0, 64)).get(5, TimeUnit.SECONDS);
+      wrOnly.write(ByteBuffer.wrap(test1Data, 64, 64)).whenComplete((n, ex) -> {
+        try {
+          wrOnly.close();
+          closer.complete(Thread.currentThread());
+        } catch(IOException e) {
+          closer.completeExceptionally(e);
+        }
+      });
+      try {
+        closer.get(5, TimeUnit.SECONDS);
+        slow.closeAsync().get(5, TimeUnit.SECONDS);
+      } catch(TimeoutException e) {
+        ln("close() from a write completion did not return");
+        rslt = false;
+      }
+
+      // A cancelled read does not hold the slot on an idle stream - the next read may start at once
+      PipedInputStream   idle   = new PipedInputStream(new PipedOutputStream(), 256);
+      AsyncStreamChannel rdOnly = new AsyncStreamChannel(new InputStreamToChannel("Test5 Idle", idle, 64, 32), null);
+      rdOnly.read(ByteBuffer.allocate(16)).cancel(true);
+      try {
+        rdOnly.read(ByteBuffer.allocate(16));
+      } catch(ReadPendingException e) {
+        ln("A read after a cancelled one threw ReadPendingException");
+        rslt = false;
+      }
+      rdOnly.close();
+    } catch(Exception ex) {
+      ln("Test5 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test5 -- Async: " + rslt);
+    return rslt;
+  }
+
+  /** Publisher over an InputStream feeding a Subscriber over an OutputStream - small chunks and prefetch for backpressure,
+   *  with non-default WaitStrategies */
+  private boolean runTest6() {
+    boolean rslt = true;
+    try {
+      ByteArrayOutputStream sink = new ByteArrayOutputStream();
+      OutputStreamToChannel out  = new OutputStreamToChannel("Test6 Out", sink, 256, 128);
+      InputStreamToChannel  in   = new InputStreamToChannel("Test6 In", new ByteArrayInputStream(test1Data), 512, 256);
+      StreamPublisher       pub  = new StreamPublisher(in, 100);
+      StreamSubscriber      sub  = new StreamSubscriber(out, 2);
+      in.setWaitStrategy(WaitStrategy.backoff(1_000, 100_000));
+      out.setWaitStrategy(WaitStrategy.spinYield(100));
+      pub.subscribe(sub);
+      sub.completion().get(10, TimeUnit.SECONDS);
+      out.close();
+      if(!Arrays.equals(sink.toByteArray(), test1Data)) {
+        ln("Data passed through the Flow adapters does not match, got " + sink.size() + " bytes");
+        rslt = false;
+      }
+
+      // A short stream with a large chunkSize - each onNext buffer should be sized to the data, not the chunkSize
+      byte[]                  small = "A few bytes".getBytes();
+      InputStreamToChannel    in2   = new InputStreamToChannel("Test6 Small", new ByteArrayInputStream(small), 512, 256);
+      List<ByteBuffer>        got   = Collections.synchronizedList(new ArrayList<>());
+      CompletableFuture<Void> done  = new CompletableFuture<>();
+      new StreamPublisher(in2, 1 << 16).subscribe(new Flow.Subscriber<ByteBuffer>() {
+        public void onSubscribe(Flow.Subscription s) { s.request(Long.MAX_VALUE); }
+        public void onNext(ByteBuffer bb)            { got.add(bb); }
+        public void onError(Throwable ex)            { done.completeExceptionally(ex); }
+        public void onComplete()                     { done.complete(null); }
+      });
+      done.get(10, TimeUnit.SECONDS);
+      int ttl = 0;
+      for(ByteBuffer bb : got) {
+        ttl += bb.remaining();
+        if(bb.capacity() > small.length) {
+          ln("Expected an onNext buffer of at most " + small.length + " bytes, got a capacity of " + bb.capacity());
+          rslt = false;
+        }
+      }
+      if(ttl != small.length) {
+        ln("Expected " + small.length + " bytes published, got " + ttl);
+        rslt = false;
+      }
+    } catch(Exception ex) {
+      ln("Test6 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test6 -- Flow: " + rslt);
+    return rslt;
+  }
+
+  /** Counters and histograms are published through JMX while the channel is open */
+  private boolean runTest7() {
+    boolean rslt = true;
+    try {
+      MBeanServer          srvr = ManagementFactory.getPlatformMBeanServer();
+      InputStreamToChannel in   = new InputStreamToChannel("Test7 In", new ByteArrayInputStream(test1Data), 1024, 256);
+      ObjectName           name = in.registerMBean();
+      ByteBuffer           bb   = ByteBuffer.allocate(test1Data.length);
+      while(in.read(bb) >= 0 && bb.hasRemaining()) in.awaitReadable(5, TimeUnit.SECONDS);
+
+      long dataRead = (Long) srvr.getAttribute(name, "DataRead");
+      long chunks   = (Long) srvr.getAttribute(name, "ChunkCount");
+      long agg      = (Long) srvr.getAttribute(new ObjectName(ChannelStats.aggregateName), "DataRead");
+      if(dataRead != test1Data.length || chunks != in.numReads() || agg < dataRead) {
+        ln("Unexpected MBean values - DataRead: " + dataRead + ", ChunkCount: " + chunks + ", Aggregate DataRead: " + agg);
+        rslt = false;
+      }
+      in.close();
+      if(srvr.isRegistered(name)) {
+        ln("MBean still registered after close");
+        rslt = false;
+      }
+    } catch(Exception ex) {
+      ln("Test7 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test7 -- Metrics: " + rslt);
+    return rslt;
+  }
+
+  /** Adaptive read size - a stream with plenty available() should be read in a few large reads */
+  private boolean runTest8() {
+    boolean rslt = true;
+    try {
+      byte[] data = new byte[1 << 20];
+      for(int i=0; i<data.length; i++) data[i] = test1Data[i % test1Data.length];
+      // Held until the read size range is set, else the thread fills the high-water mark with fixed 256-byte reads
+      CountDownLatch go    = new CountDownLatch(1);
+      InputStream    gated = new FilterInputStream(new ByteArrayInputStream(data)) {
+        public int read(byte[] b, int off, int len) throws IOException {
+          try {
+            go.await();
+          } catch(InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+          return super.read(b, off, len);
+        }
+      };
+      InputStreamToChannel in = new InputStreamToChannel("Test8 In", gated, 1 << 18, 256);
+      in.setReadSizeRange(256, 65536);
+      in.setBlocking(true);
+      go.countDown();
+      ByteBuffer bb = ByteBuffer.allocate(data.length);
+      while(bb.hasRemaining() && in.read(bb) >= 0) { }
+      if(!bb.flip().equals(ByteBuffer.wrap(data))) {
+        ln("Data read with an adaptive read size does not match");
+        rslt = false;
+      }
+      if(in.numReads() > 64) {
+        ln("Expected large reads, got " + in.numReads() + " reads for " + data.length + " bytes");
+        rslt = false;
+      }
+      in.close();
+
+      // Reads are cut down to the room below the high-water mark - nothing is read past it
+      InputStreamToChannel capped = new InputStreamToChannel("Test8 Capped", new ByteArrayInputStream(data), 4096, 256);
+      capped.setReadSizeRange(256, 65536);
+      Delay.threadSleep(50);                        // Let the thread fill up to the mark, then park
+      if(capped.inFlight() > 4096) {
+        ln("Read past the high-water mark of 4096: " + capped.inFlight() + " bytes staged");
+        rslt = false;
+      }
+      capped.close();
+    } catch(Exception ex) {
+      ln("Test8 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test8 -- Adaptive read size: " + rslt);
+    return rslt;
+  }
+
+  /** Linger - small writes are held back and combined into one OutputStream write, flush() sends them at once */
+  private boolean runTest9() {
+    boolean rslt = true;
+    try {
+      ByteArrayOutputStream sink = new ByteArrayOutputStream();
+      OutputStreamToChannel out  = new OutputStreamToChannel("Test9 Out", sink, 4096, 1024);
+      out.setLinger(10_000_000, 1024);              // Far longer than the test
+      for(int i=0; i<10; i++) out.write(ByteBuffer.wrap(test1Data, i * 10, 10));
+      Delay.threadSleep(50);
+      if(sink.size() != 0) {
+        ln("Data sent during the linger: " + sink.size() + " bytes");
+        rslt = false;
+      }
+      out.flush();
+      if(out.numWrites() != 1 || !Arrays.equals(sink.toByteArray(), Arrays.copyOf(test1Data, 100))) {
+        ln("Expected 100 bytes in 1 write after flush(), got " + sink.size() + " bytes in " + out.numWrites() + " writes");
+        rslt = false;
+      }
+      out.close();
+
+      // flush() waits for the data written before it, not for a writer which keeps the queue busy
+      OutputStream slow = new OutputStream() {
+        public void write(int b) { }
+        public void write(byte[] b, int off, int len) { Delay.threadSleep(1); }
+      };
+      OutputStreamToChannel busyOut = new OutputStreamToChannel("Test9 Busy", slow, 4096, 1024);
+      Thread busy = new Thread(() -> {
+        try {
+          while(!Thread.currentThread().isInterrupted()) busyOut.write(ByteBuffer.wrap(test1Data, 0, 100));
+        } catch(IOException e) { }
+      });
+      busy.start();
+      Delay.threadSleep(10);
+      CompletableFuture<Void> flushed = CompletableFuture.runAsync(() -> {
+        try { busyOut.flush(); } catch(IOException e) { throw new UncheckedIOException(e); }
+      });
+      try {
+        flushed.get(5, TimeUnit.SECONDS);
+      } catch(TimeoutException e) {
+        ln("flush() did not return while another thread kept writing");
+        rslt = false;
+      }
+      busy.interrupt();
+      busy.join();
+      busyOut.close();
+
+      // flush() does not return normally if the channel is aborted while the data is still in flight
+      CountDownLatch        hold    = new CountDownLatch(1);
+      OutputStreamToChannel held    = new OutputStreamToChannel("Test9 Held", new OutputStream() {
+        public void write(int b) { }
+        public void write(byte[] b, int off, int len) {
+          try { hold.await(); } catch(InterruptedException e) { }
+        }
+      }, 4096, 1024);
+      held.write(ByteBuffer.wrap(test1Data, 0, 100));
+      CompletableFuture<Void> aborted = CompletableFuture.runAsync(() -> {
+        try { held.flush(); } catch(IOException e) { throw new UncheckedIOException(e); }
+      });
+      Delay.threadSleep(10);
+      held.abort();
+      hold.countDown();
+      try {
+        aborted.get(5, TimeUnit.SECONDS);
+        ln("Expected flush() to throw once aborted with the data in flight");
+        rslt = false;
+      } catch(ExecutionException e) {
+        if(!(e.getCause() instanceof UncheckedIOException) || !(e.getCause().getCause() instanceof AsynchronousCloseException)) {
+          ln("Expected AsynchronousCloseException from flush(), got " + e.getCause());
+          rslt = false;
+        }
+      }
+    } catch(Exception ex) {
+      ln("Test9 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test9 -- Linger: " + rslt);
+    return rslt;
+  }
+
+  /** Partial write - a write larger than the room left accepts what fits, then 0 while the OutputStream is held */
+  private boolean runTest10() {
+    boolean rslt = true;
+    try {
+      CountDownLatch        hold = new CountDownLatch(1);
+      ByteArrayOutputStream sink = new ByteArrayOutputStream() {
+        public synchronized void write(byte[] b, int off, int len) {
+          try { hold.await(); } catch(InterruptedException e) { }
+          super.write(b, off, len);
+        }
+      };
+      OutputStreamToChannel out = new OutputStreamToChannel("Test10 Out", sink, 256, 128);
+      ByteBuffer            bb  = ByteBuffer.wrap(test1Data, 0, 1000);
+      int n1 = out.write(bb);
+      int n2 = out.write(bb);
+      if(n1 != 256 || n2 != 0) {
+        ln("Expected 256 then 0 bytes accepted, got " + n1 + " then " + n2);
+        rslt = false;
+      }
+      hold.countDown();
+      out.setBlocking(true);
+      out.write(bb);
+      out.flush();
+      if(!Arrays.equals(sink.toByteArray(), Arrays.copyOf(test1Data, 1000))) {
+        ln("Data written in parts does not match");
+        rslt = false;
+      }
+      out.close();
+    } catch(Exception ex) {
+      ln("Test10 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test10 -- Partial write: " + rslt);
+    return rslt;
+  }
+
+  /** Zero-copy writes of a heap and a direct buffer, between copied writes - each owned buffer is released once sent */
+  private boolean runTest11() {
+    boolean rslt = true;
+    try {
+      ByteArrayOutputStream sink     = new ByteArrayOutputStream();
+      OutputStreamToChannel out      = new OutputStreamToChannel("Test11 Out", sink, 4096, 1024);
+      List<ByteBuffer>      released = Collections.synchronizedList(new ArrayList<>());
+      ByteBuffer            heap     = ByteBuffer.wrap(test1Data, 100, 900);
+      ByteBuffer            direct   = ByteBuffer.allocateDirect(2000).put(test1Data, 1000, 2000).flip();
+      out.setBlocking(true);
+      out.write(ByteBuffer.wrap(test1Data, 0, 100));
+      out.writeOwned(heap, released::add);
+      out.writeOwned(direct, released::add);
+      out.write(ByteBuffer.wrap(test1Data, 3000, 50));
+      out.flush();
+      if(!Arrays.equals(sink.toByteArray(), Arrays.copyOf(test1Data, 3050))) {
+        ln("Data written with writeOwned does not match");
+        rslt = false;
+      }
+      if(released.size() != 2 || released.get(0) != heap || released.get(1) != direct) {
+        ln("Expected both owned buffers released in order, got " + released.size());
+        rslt = false;
+      }
+      out.close();
+
+      // An owned buffer in the middle of a failed send is handed back too
+      OutputStream failing = new OutputStream() {
+        public void write(int b) throws IOException { throw new IOException("Test11 failure"); }
+      };
+      OutputStreamToChannel bad = new OutputStreamToChannel("Test11 Bad", failing, 4096, 1024);
+      released.clear();
+      try {
+        bad.writeOwned(ByteBuffer.wrap(test1Data, 0, 100), released::add);
+      } catch(IOException e) {
+        // The thread may fail before writeOwned returns - the buffer is handed back either way
+      }
+      for(int i = 0; i < 100 && released.isEmpty(); i++) Delay.threadSleep(10);
+      if(released.size() != 1 || !bad.hadError()) {
+        ln("Expected the owned buffer released after the send failed, got " + released.size());
+        rslt = false;
+      }
+
+      // A release callback which throws does not end the thread - later data is still sent
+      ByteArrayOutputStream after = new ByteArrayOutputStream();
+      OutputStreamToChannel cb    = new OutputStreamToChannel("Test11 Callback", after, 4096, 1024);
+      cb.setBlocking(true);
+      cb.writeOwned(ByteBuffer.wrap(test1Data, 0, 100), b -> { throw new IllegalStateException("Test11 callback"); });
+      cb.write(ByteBuffer.wrap(test1Data, 100, 100));
+      cb.flush();
+      if(cb.hadError() || !Arrays.equals(after.toByteArray(), Arrays.copyOf(test1Data, 200))) {
+        ln("Expected the data after a failing release callback to be sent, got " + after.size() + " bytes");
+        rslt = false;
+      }
+      cb.close();
+    } catch(Exception ex) {
+      ln("Test11 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test11 -- Owned write: " + rslt);
+    return rslt;
+  }
+
+  /** MemoryBudget - two channels with large high-water marks stage no more than the shared budget allows */
+  private boolean runTest12() {
+    boolean rslt = true;
+    try {
+      MemoryBudget         budget = new MemoryBudget(4096, 512);
+      InOutCommon.setDefaultMemoryBudget(budget);
+      InputStreamToChannel a      = new InputStreamToChannel("Test12 A", new ByteArrayInputStream(test1Data), 65536, 1024);
+      InputStreamToChannel b      = new InputStreamToChannel("Test12 B", new ByteArrayInputStream(test1Data), 65536, 1024);
+      InOutCommon.setDefaultMemoryBudget(null);
+      Delay.threadSleep(100);
+      long used = budget.getUsed();
+      if(used > 4096 + 2 * 512 || used < 1024 || a.inFlight() + b.inFlight() != used || budget.getChannels() != 2) {
+        ln("Budget exceeded - " + budget);
+        rslt = false;
+      }
+      long waits = a.rejections.sum() + b.rejections.sum();
+      if(waits > 10) {                              // Both have waited for 100 ms, woken only when the budget is released
+        ln("Polled the MemoryBudget while it was full: " + waits + " waits");
+        rslt = false;
+      }
+      for(InputStreamToChannel in : new InputStreamToChannel[]{ a, b }) {
+        in.setBlocking(true);
+        ByteBuffer bb = ByteBuffer.allocate(test1Data.length);
+        while(bb.hasRemaining() && in.read(bb) >= 0) { }
+        if(!bb.flip().equals(ByteBuffer.wrap(test1Data))) {
+          ln("Data read under a MemoryBudget does not match");
+          rslt = false;
+        }
+        in.close();
+      }
+      if(budget.getUsed() != 0 || budget.getChannels() != 0) {
+        ln("Budget not released after close - " + budget);
+        rslt = false;
+      }
+    } catch(Exception ex) {
+      ln("Test12 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test12 -- Memory budget: " + rslt);
+    return rslt;
+  }
+
+  /** Deflate codec through a pipe - each flushed batch can be decoded before the writer closes */
+  private boolean runTest13() {
+    boolean rslt = true;
+    try {
+      PipedInputStream      pipe = new PipedInputStream(65536);
+      CountingOut           wire = new CountingOut(new PipedOutputStream(pipe));
+      StreamCodec           zip  = StreamCodec.deflate(Deflater.BEST_SPEED);
+      OutputStreamToChannel out  = StreamChannels.newChannel("Test13 Out", wire, zip);
+      InputStreamToChannel  in   = StreamChannels.newChannel("Test13 In", pipe, zip);
+      byte[]                data = new byte[4 * test1Data.length];
+      for(int i=0; i<data.length; i++) data[i] = test1Data[i % 1000];
+
+      out.setBlocking(true);
+      out.write(ByteBuffer.wrap(data));
+      out.flush();
+      in.setBlocking(true);
+      ByteBuffer bb = ByteBuffer.allocate(data.length);
+      while(bb.hasRemaining() && in.read(bb) >= 0) { }
+      if(!bb.flip().equals(ByteBuffer.wrap(data))) {
+        ln("Data through the deflate codec does not match");
+        rslt = false;
+      }
+      if(wire.count >= data.length / 2) {
+        ln("Expected the data to be compressed, sent " + wire.count + " bytes for " + data.length);
+        rslt = false;
+      }
+      out.close();
+      in.close();
+    } catch(Exception ex) {
+      ln("Test13 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test13 -- Deflate codec: " + rslt);
+    return rslt;
+  }
+
+  /** Length-prefixed frames - split reads are reassembled, EOF after the last frame, frames staged before an error first */
+  private boolean runTest14() {
+    boolean rslt = true;
+    try {
+      int[]                 sizes = { 5, 0, 1, 300, 1000, 70 };
+      ByteArrayOutputStream wire  = new ByteArrayOutputStream();
+      for(int size : sizes) {
+        wire.write(size);                     // 2 byte little-endian length prefix
+        wire.write(size >> 8);
+        wire.write(test1Data, 0, size);
+      }
+      InputStream           trickle = new FilterInputStream(new ByteArrayInputStream(wire.toByteArray())) {
+        public int read(byte[] b, int off, int len) throws IOException { return in.read(b, off, Math.min(len, 7)); }
+      };
+      InputStreamToChannel  in    = InputStreamToChannel.framed("Test14 In", trickle, 4096, 2, ByteOrder.LITTLE_ENDIAN, 1000);
+      in.setBlocking(true);
+      for(int size : sizes) {
+        ByteBuffer frame = in.readFrame();
+        if(frame == null || !frame.equals(ByteBuffer.wrap(test1Data, 0, size))) {
+          ln("Frame of " + size + " bytes does not match: " + frame);
+          rslt = false;
+        }
+      }
+      if(in.readFrame() != null || in.inFlight() >= 0) {
+        ln("Expected EOF after the last frame");
+        rslt = false;
+      }
+      in.close();
+
+      InputStreamToChannel  big   = InputStreamToChannel.framed("Test14 Big", new ByteArrayInputStream(new byte[]{ 0, 0, 8, 0 }),
+                                                                 4096, 4, ByteOrder.BIG_ENDIAN, 1000);
+      big.setBlocking(true);
+      try {
+        big.readFrame();
+        ln("Expected an IOException for a frame over the max size");
+        rslt = false;
+      } catch(IOException expected) { }
+      big.close();
+
+      // Two whole frames, then one cut short - the whole ones are read before the Exception is thrown
+      InputStreamToChannel  cut   = InputStreamToChannel.framed("Test14 Cut", new ByteArrayInputStream(new byte[]{
+                                                                   0, 3, 'a', 'b', 'c', 0, 2, 'd', 'e', 0, 5, 'x' }),
+                                                                 4096, 2, ByteOrder.BIG_ENDIAN, 1000);
+      cut.setBlocking(true);
+      Delay.threadSleep(50);                  // The pump reaches the cut before the frames are read
+      ByteBuffer f1 = cut.readFrame();
+      ByteBuffer f2 = cut.readFrame();
+      if(f1 == null || f1.remaining() != 3 || f2 == null || f2.remaining() != 2) {
+        ln("Expected the frames of 3 and 2 bytes before the Exception, got " + f1 + " and " + f2);
+        rslt = false;
+      }
+      try {
+        cut.readFrame();
+        ln("Expected an IOException for the frame cut short");
+        rslt = false;
+      } catch(IOException expected) { }
+      cut.close();
+
+      // Many small frames are sliced out of a few block reads, and empty frames still count against the high-water mark
+      ByteArrayOutputStream small = new ByteArrayOutputStream();
+      for(int i=0; i<100; i++) small.write(new byte[]{ 0, 5, 1, 2, 3, 4, 5 });
+      small.write(new byte[2 * 1000]);        // 1000 empty frames
+      int[]                 reads = { 0 };
+      InputStream           count = new FilterInputStream(new ByteArrayInputStream(small.toByteArray())) {
+        public int read(byte[] b, int off, int len) throws IOException { reads[0]++; return in.read(b, off, len); }
+      };
+      InputStreamToChannel  many  = InputStreamToChannel.framed("Test14 Many", count, 64, 2, ByteOrder.BIG_ENDIAN, 1000);
+      many.setBlocking(true);
+      for(int i=0; i<100; i++) many.readFrame();
+      Delay.threadSleep(50);                  // The pump stops at the high-water mark on the empty frames
+      int staged = many.inFlight();
+      if(staged <= 0 || staged > 64 + 2) {
+        ln("Expected the empty frames staged up to the high-water mark of 64, got " + staged);
+        rslt = false;
+      }
+      int frames = 0;
+      while(many.readFrame() != null) frames++;
+      if(frames != 1000 || reads[0] > 10) {
+        ln("Expected 1000 empty frames in a few reads, got " + frames + " frames in " + reads[0] + " reads");
+        rslt = false;
+      }
+      many.close();
+    } catch(Exception ex) {
+      ln("Test14 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test14 -- Length-prefixed frames: " + rslt);
+    return rslt;
+  }
+
+  /** Spill - writes beyond maxInFlight go to a mapped file while the OutputStream is stalled, and are sent in order */
+  private boolean runTest15() {
+    boolean rslt = true;
+    try {
+      CountDownLatch        stalled = new CountDownLatch(1);
+      ByteArrayOutputStream sink    = new ByteArrayOutputStream() {
+        public synchronized void write(byte[] b, int off, int len) {
+          try { stalled.await(); } catch(InterruptedException e) { }
+          super.write(b, off, len);
+        }
+      };
+      OutputStreamToChannel out     = new OutputStreamToChannel("Test15 Out", sink, 1024, 512);
+      out.setSpill(null, 64 * 1024, 16 * 1024);
+      ByteBuffer            expect  = ByteBuffer.allocate(48 * 1024);
+      for(int i=0; expect.hasRemaining(); i++) {
+        ByteBuffer bb = ByteBuffer.wrap(test1Data, 0, Math.min(1 + i % 999, expect.remaining()));
+        expect.put(bb.duplicate());
+        if(i % 7 == 0) out.writeOwned(bb, b -> { });
+        else           out.write(bb);
+        if(bb.hasRemaining()) {
+          ln("Write not accepted while the OutputStream is stalled, inFlight " + out.inFlight());
+          rslt = false;
+          break;
+        }
+      }
+      if(out.getSpill().isEmpty()) {
+        ln("Expected data to be spilled");
+        rslt = false;
+      }
+      stalled.countDown();
+      out.flush();
+      if(!ByteBuffer.wrap(sink.toByteArray()).equals(expect.flip())) {
+        ln("Data through the spill is out of order or missing");
+        rslt = false;
+      }
+      Path                  file    = out.getSpill().getPath();
+      out.close();
+      if(Files.exists(file)) {
+        ln("Spill file not deleted by close: " + file);
+        rslt = false;
+      }
+
+      // abort() while the thread is still sending - the spill stays open until the thread has ended, then is deleted
+      CountDownLatch        held     = new CountDownLatch(1);
+      OutputStreamToChannel aborted  = new OutputStreamToChannel("Test15 Abort", new OutputStream() {
+        public void write(int b) { }
+        public void write(byte[] b, int off, int len) {
+          try { held.await(); } catch(InterruptedException e) { }
+        }
+      }, 1024, 512);
+      aborted.setSpill(null, 1 << 20, 64 * 1024);
+      for(int i = 0; i < 20; i++) aborted.write(ByteBuffer.wrap(test1Data, 0, 1000));
+      Path spilled = aborted.getSpill().getPath();
+      aborted.abort();
+      if(!Files.exists(spilled)) {
+        ln("Spill file deleted by abort() while the thread may still send from it");
+        rslt = false;
+      }
+      held.countDown();
+      for(int i = 0; i < 100 && Files.exists(spilled); i++) Delay.threadSleep(10);
+      if(Files.exists(spilled)) {
+        ln("Spill file not deleted once the aborted thread ended: " + spilled);
+        rslt = false;
+      }
+      if(aborted.hadError()) {
+        ln("Expected the aborted thread to end without an Exception, got " + aborted.getException());
+        rslt = false;
+      }
+    } catch(Exception ex) {
+      ln("Test15 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test15 -- Spill to a mapped file: " + rslt);
+    return rslt;
+  }
+
+  /** Async close - drains then closes, aborts a stalled stream at the timeout, and reports a thread which died */
+  private boolean runTest16() {
+    boolean rslt = true;
+    try {
+      // Drained, then closed
+      ByteArrayOutputStream   sink  = new ByteArrayOutputStream();
+      OutputStreamToChannel   out   = new OutputStreamToChannel("Test16 Out", sink, 64 * 1024, 1024);
+      out.write(ByteBuffer.wrap(test1Data));
+      CompletableFuture<Void> f     = out.closeAsync();
+      try {
+        out.write(ByteBuffer.wrap(test1Data));
+        ln("Expected a write after closeAsync to throw");
+        rslt = false;
+      } catch(ClosedChannelException expected) { }
+      f.get(5, TimeUnit.SECONDS);
+      if(!Arrays.equals(sink.toByteArray(), test1Data)) {
+        ln("Expected all the data sent before closing, got " + sink.size() + " bytes");
+        rslt = false;
+      }
+
+      // Stalled OutputStream - aborted at the timeout
+      CountDownLatch          stall = new CountDownLatch(1);
+      OutputStreamToChannel   slow  = new OutputStreamToChannel("Test16 Slow", new OutputStream() {
+        public void write(int b) { }
+        public void write(byte[] b, int off, int len) { try { stall.await(); } catch(InterruptedException e) { } }
+      }, 64 * 1024, 1024);
+      slow.write(ByteBuffer.wrap(test1Data));
+      try {
+        slow.closeAsync(50, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+        ln("Expected the close of a stalled stream to time out");
+        rslt = false;
+      } catch(ExecutionException expected) {
+        if(!(expected.getCause() instanceof TimeoutException)) {
+          ln("Expected a TimeoutException, got " + expected.getCause());
+          rslt = false;
+        }
+      }
+      stall.countDown();
+
+      // The thread already died - close must not hang
+      OutputStreamToChannel   dead  = new OutputStreamToChannel("Test16 Dead", new OutputStream() {
+        public void write(int b) throws IOException { throw new IOException("Broken"); }
+      }, 64 * 1024, 1024);
+      try {
+        dead.write(ByteBuffer.wrap(test1Data));
+      } catch(IOException expected) {
+        // The thread may fail before write returns - the close must report it either way
+      }
+      try {
+        dead.closeAsync().get(5, TimeUnit.SECONDS);
+        ln("Expected the close to report the unsent data");
+        rslt = false;
+      } catch(ExecutionException expected) { }
+
+      // try-with-resources - close() must not throw the very Exception the write just threw
+      OutputStreamToChannel   broken = new OutputStreamToChannel("Test16 Broken", new OutputStream() {
+        public void write(int b) throws IOException { throw new IOException("Broken"); }
+      }, 64 * 1024, 1024);
+      try {
+        broken.write(ByteBuffer.wrap(test1Data));
+      } catch(IOException expected) {
+        // The thread may fail before write returns
+      }
+      for(int i = 0; i < 100 && !broken.hadError(); i++) Delay.threadSleep(10);
+      try(OutputStreamToChannel c = broken) {
+        c.write(ByteBuffer.wrap(test1Data));
+        ln("Expected the write to throw the thread's Exception");
+        rslt = false;
+      } catch(IOException expected) {
+        if(expected.getSuppressed().length != 1) {
+          ln("Expected the close Exception suppressed by the write's, got " + Arrays.toString(expected.getSuppressed()));
+          rslt = false;
+        }
+      }
+
+      // Writes racing closeAsync - each byte a write returns as accepted is sent, none is lost
+      for(int i = 0; i < 50 && rslt; i++) {
+        ByteArrayOutputStream race   = new ByteArrayOutputStream();
+        OutputStreamToChannel racing = new OutputStreamToChannel("Test16 Race", race, 64 * 1024, 1024);
+        long[]                taken  = new long[1];
+        Thread                writer = new Thread(() -> {
+          try {
+            while(true) taken[0] += racing.write(ByteBuffer.wrap(test1Data, 0, 100));
+          } catch(IOException e) { }
+        });
+        writer.start();
+        Delay.threadSleep(1);
+        racing.closeAsync().get(5, TimeUnit.SECONDS);
+        writer.join();
+        if(taken[0] != race.size()) {
+          ln("Writes racing the close took " + taken[0] + " bytes, but " + race.size() + " were sent");
+          rslt = false;
+        }
+      }
+    } catch(Exception ex) {
+      ln("Test16 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test16 -- Async close: " + rslt);
+    return rslt;
+  }
+
+  /** StreamRelay into a ByteRing smaller than the relayed chunks - each chunk is copied in slices, none is stuck */
+  private boolean runTest17() {
+    boolean rslt = true;
+    try(StreamRelay relay = new StreamRelay(1)) {
+      byte[] data = new byte[256 * 1024];
+      for(int i=0; i<data.length; i++) data[i] = test1Data[i % test1Data.length];
+      ByteArrayOutputStream sink = new ByteArrayOutputStream();
+      InputStreamToChannel  in   = new InputStreamToChannel("Test17 In", new ByteArrayInputStream(data), 64 * 1024, 16 * 1024);
+      OutputStreamToChannel out  = new OutputStreamToChannel("Test17 Out", sink, 4096, 1024, 8, 256, true, true, null);
+      long n = relay.relay(in, out).get(5, TimeUnit.SECONDS);
+      if(n != data.length || !Arrays.equals(sink.toByteArray(), data)) {
+        ln("Expected " + data.length + " bytes relayed through the ring, got " + n + " and " + sink.size() + " sent");
+        rslt = false;
+      }
+      out.close();
+    } catch(Exception ex) {
+      ln("Test17 exception -- Ex: " + ex.toString());
+      rslt = false;
+    }
+    ln("Test17 -- Relay into a smaller ring: " + rslt);
+    return rslt;
+  }
+
+  /** Counts the bytes written through it */
+  static class CountingOut extends FilterOutputStream {
+    volatile long count = 0;
+    CountingOut(OutputStream out) { super(out); }
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
   /******************************************************************************************/
   /** FAKE InputStream - instantiate with array of test data to be returned                 */
   /******************************************************************************************/
@@ -226,7 +1121,7 @@ public class TestInOutStreams {
       delay.delay();
       synchronized(lock2) {
         for(int i=0; i<len; i++){
-          data[index++] = b[i];
+          data[index++] = b[off + i];
         }
       }
     }
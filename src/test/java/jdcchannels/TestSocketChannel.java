@@ -1,8 +1,196 @@
 package jdcchannel;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Connect Sockets over the loopback interface and pass them through SocketToSocketChannel */
 public class TestSocketChannel {
 
+  private static final boolean bDebug = false;
+
   public static void main(String[] args){
 
+    TestSocketChannel tst = new TestSocketChannel();
+    boolean ok = true;
+    ok &= tst.runTest1();
+    ok &= tst.runTest2();
+    ok &= tst.runTest3();
+    System.exit(ok ? 0 : 1);            // Non-zero if any test failed, for the build
+  }
+
+  /** Register the receiving side with a StreamSelector, check OP_WRITE is ready at once and OP_READ only after a write */
+  private boolean runTest1(){
+    boolean rslt = true;
+    try(ServerSocket srvr = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      Socket client = new Socket(srvr.getInetAddress(), srvr.getLocalPort());
+      Socket server = srvr.accept();
+
+      SocketToSocketChannel from = new SocketToSocketChannel("Test1 From", client);
+      SocketToSocketChannel to   = new SocketToSocketChannel("Test1 To", server);
+      Selector              sel  = StreamSelectorProvider.provider().openSelector();
+
+      SelectionKey rdKey = to.register(sel, SelectionKey.OP_READ);
+      SelectionKey wrKey = from.register(sel, SelectionKey.OP_WRITE);
+
+      int n = sel.select(1000);
+      if(n != 1 || !sel.selectedKeys().contains(wrKey) || sel.selectedKeys().contains(rdKey)) {
+        ln("Expected only the OP_WRITE key ready, got " + n + " keys");
+        rslt = false;
+      }
+      sel.selectedKeys().clear();
+      wrKey.cancel();
+
+      byte[]     data = "Hello through the StreamSelector".getBytes();
+      ByteBuffer bb   = ByteBuffer.wrap(data);
+      while(bb.hasRemaining()) from.write(bb);
+
+      ByteBuffer in = ByteBuffer.allocate(data.length);
+      while(in.hasRemaining() && rslt) {
+        n = sel.select(5000);
+        if(n == 0 || !rdKey.isReadable()) {
+          ln("Select timed out waiting for OP_READ");
+          rslt = false;
+        } else {
+          debug("Selected " + n + ", read " + to.read(in) + " bytes");
+          sel.selectedKeys().clear();
+        }
+      }
+      for(int i=0; rslt && i<data.length; i++) {
+        if(in.get(i) != data[i]) {
+          ln("Mismatch at " + i + " Expected: " + data[i] + ", Got: " + in.get(i));
+          rslt = false;
+        }
+      }
+
+      from.close();
+      to.close();
+      if(rdKey.isValid()) {
+        ln("Key still valid after the channel was closed");
+        rslt = false;
+      }
+      sel.close();
+    } catch(IOException ex) {
+      ln("Exception -- " + ex.toString());
+      rslt = false;
+    }
+    ln("Test1 -- Selector: " + rslt);
+    return rslt;
+  }
+
+  /** Gathering write of a header + body, scattering read into a header + body */
+  private boolean runTest2(){
+    boolean rslt = true;
+    try(ServerSocket srvr = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      Socket client = new Socket(srvr.getInetAddress(), srvr.getLocalPort());
+      Socket server = srvr.accept();
+
+      SocketToSocketChannel from = new SocketToSocketChannel("Test2 From", client);
+      SocketToSocketChannel to   = new SocketToSocketChannel("Test2 To", server);
+
+      byte[] hdr  = "HDR:".getBytes();
+      byte[] body = "The body of the message".getBytes();
+      ByteBuffer[] out = { ByteBuffer.wrap(hdr), ByteBuffer.wrap(body) };
+      long n = 0;
+      while(n < hdr.length + body.length) n += from.write(out);
+
+      ByteBuffer[] in = { ByteBuffer.allocate(hdr.length), ByteBuffer.allocate(body.length) };
+      Delay delay = new Delay();
+      n = 0;
+      while(n < hdr.length + body.length && n >= 0) {
+        long nNow = to.read(in);
+        if(nNow == 0) delay.delay();
+        n += nNow;
+      }
+      if(!ByteBuffer.wrap(hdr).equals(in[0].flip()) || !ByteBuffer.wrap(body).equals(in[1].flip())) {
+        ln("Scattered data does not match what was gathered");
+        rslt = false;
+      }
+      from.flush();                           // The count is updated after the Socket write returns
+      if(from.numWrites() != 1) {
+        ln("Expected the gathered buffers to be sent in 1 write, got " + from.numWrites());
+        rslt = false;
+      }
+      from.close();
+      to.close();
+    } catch(IOException ex) {
+      ln("Exception -- " + ex.toString());
+      rslt = false;
+    }
+    ln("Test2 -- Scatter/Gather: " + rslt);
+    return rslt;
   }
+
+  /** Client -> relay -> echo server and back, with half-close at EOF passed through the relay in both directions */
+  private boolean runTest3(){
+    boolean rslt = true;
+    try(ServerSocket front = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        ServerSocket back  = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        StreamRelay  relay = new StreamRelay(2)) {
+      Socket client   = new Socket(front.getInetAddress(), front.getLocalPort());
+      Socket accepted = front.accept();
+      Socket upstream = new Socket(back.getInetAddress(), back.getLocalPort());
+      Socket server   = back.accept();
+
+      Thread echo = new Thread(() -> {         // Echo everything, then close at EOF
+        try(Socket s = server) {
+          s.getOutputStream().write(s.getInputStream().readAllBytes());
+        } catch(IOException ex) {
+          ln("Echo exception -- " + ex.toString());
+        }
+      });
+      echo.start();
+
+      SocketToSocketChannel   a    = new SocketToSocketChannel("Test3 A", accepted);
+      SocketToSocketChannel   b    = new SocketToSocketChannel("Test3 B", upstream);
+      CompletableFuture<Void> done = relay.relay(a, b);
+
+      byte[] data = new byte[200 * 1024];
+      for(int i=0; i<data.length; i++) data[i] = (byte) (i * 31);
+      Thread send = new Thread(() -> {
+        try {
+          OutputStream out = client.getOutputStream();
+          out.write(data);
+          client.shutdownOutput();
+        } catch(IOException ex) {
+          ln("Send exception -- " + ex.toString());
+        }
+      });
+      send.start();
+      InputStream in   = client.getInputStream();
+      byte[]      got  = in.readAllBytes();       // Until the relay passes on the echo server's EOF
+      if(!Arrays.equals(data, got)) {
+        ln("Relayed data does not match, got " + got.length + " of " + data.length + " bytes");
+        rslt = false;
+      }
+      done.get(5, TimeUnit.SECONDS);
+      if(a.dataSent() != data.length || b.dataSent() != data.length) {
+        ln("Expected " + data.length + " bytes sent each way, got " + a.dataSent() + " and " + b.dataSent());
+        rslt = false;
+      }
+      send.join();
+      echo.join();
+      a.close();
+      b.close();
+      client.close();
+    } catch(Exception ex) {
+      ln("Exception -- " + ex.toString());
+      rslt = false;
+    }
+    ln("Test3 -- Relay: " + rslt);
+    return rslt;
+  }
+
+  private static void ln(String s) { System.out.println(s); }
+
+  private static void debug(String s) { if(bDebug) ln("DEBUG: " + s); }
 }